@@ -0,0 +1,471 @@
+package de.worldiety.autocd.bench;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ServerSocketFactory;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An in-process stand-in for the Kubernetes API server. It keeps the created objects in memory and implements
+ * create, read, list, patch and delete for every resource, which is enough to drive the K8sClient through a whole
+ * deployment without a cluster.
+ * <p>
+ * Every request can be delayed by a configurable latency. Deleted objects can stay in the "Terminating" phase for a
+ * while, creating them again fails with the same conflict a real cluster returns. The server counts the requests per
+ * verb and resource and the transferred bytes.
+ */
+public class FakeKubeApiServer implements Closeable {
+    private static final String MERGE_PATCH = "application/merge-patch+json";
+    private static final Set<String> WORKLOADS = Set.of("deployments", "statefulsets");
+    private final MockWebServer server = new MockWebServer();
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+    private final Map<String, Duration> latencies = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final AtomicLong resourceVersion = new AtomicLong();
+    private volatile Duration defaultLatency = Duration.ZERO;
+    private volatile Duration terminationDelay = Duration.ZERO;
+
+    public FakeKubeApiServer() {
+        //MockWebServer writes the headers and the body separately, with Nagle's algorithm every response would wait
+        //for the delayed ACK of the client
+        server.setServerSocketFactory(new NoDelayServerSocketFactory());
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                return handle(request);
+            }
+        });
+    }
+
+    public void start() throws IOException {
+        server.start();
+    }
+
+    /**
+     * @return the url to use as base path of the api clients
+     */
+    @NotNull
+    public String getBasePath() {
+        var url = server.url("/").toString();
+        return url.substring(0, url.length() - 1);
+    }
+
+    /**
+     * @param latency the time every request takes if no latency is set for its verb and resource
+     */
+    public void setDefaultLatency(@NotNull Duration latency) {
+        this.defaultLatency = latency;
+    }
+
+    /**
+     * @param method   the http method, e.g. POST
+     * @param resource the plural resource name, e.g. deployments
+     * @param latency  the time the requests take
+     */
+    public void setLatency(String method, String resource, @NotNull Duration latency) {
+        latencies.put(method + " " + resource, latency);
+    }
+
+    /**
+     * @param delay the time deleted objects stay in the "Terminating" phase
+     */
+    public void setTerminationDelay(@NotNull Duration delay) {
+        this.terminationDelay = delay;
+    }
+
+    /**
+     * @return the number of requests per verb and resource, e.g. "POST deployments"
+     */
+    @NotNull
+    public Map<String, Long> getRequestCounts() {
+        var counts = new TreeMap<String, Long>();
+        requests.forEach((key, count) -> counts.put(key, count.sum()));
+        return counts;
+    }
+
+    public long getRequestCount() {
+        return requests.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * Resets the statistics, the stored objects are kept.
+     */
+    public void resetStatistics() {
+        requests.clear();
+        bytesReceived.reset();
+        bytesSent.reset();
+    }
+
+    /**
+     * @return true if the object exists and is not terminating
+     */
+    public boolean contains(String resource, String namespace, String name) {
+        var stored = objects.get(key(resource, namespace, name));
+        return stored != null && !stored.isTerminating();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+
+    private MockResponse handle(@NotNull RecordedRequest request) throws InterruptedException {
+        var ref = ResourceRef.parse(request.getPath());
+        var method = request.getMethod();
+        var counter = method + " " + ref.resource;
+        requests.computeIfAbsent(counter, it -> new LongAdder()).increment();
+        bytesReceived.add(request.getBodySize());
+
+        var latency = latencies.getOrDefault(counter, defaultLatency);
+        if (!latency.isZero()) {
+            Thread.sleep(latency.toMillis());
+        }
+
+        removeTerminated();
+        MockResponse response;
+        switch (method) {
+            case "GET":
+                response = ref.name == null ? list(ref) : read(ref);
+                break;
+            case "POST":
+                response = create(ref, request.getBody().readUtf8());
+                break;
+            case "PUT":
+            case "PATCH":
+                response = patch(ref, request);
+                break;
+            case "DELETE":
+                response = delete(ref);
+                break;
+            default:
+                response = status(405, "Method Not Allowed", "MethodNotAllowed", method + " is not supported", ref);
+        }
+
+        bytesSent.add(response.getBody().size());
+        return response;
+    }
+
+    private void removeTerminated() {
+        var now = System.nanoTime();
+        objects.values().removeIf(it -> it.isTerminating() && it.deletedAt + terminationDelay.toNanos() <= now);
+    }
+
+    private MockResponse list(@NotNull ResourceRef ref) {
+        var items = new JsonArray();
+        objects.forEach((key, stored) -> {
+            if (stored.ref.resource.equals(ref.resource) && (ref.namespace == null || ref.namespace.equals(stored.ref.namespace))) {
+                items.add(stored.object);
+            }
+        });
+
+        var list = new JsonObject();
+        list.addProperty("kind", "List");
+        list.addProperty("apiVersion", "v1");
+        var metadata = new JsonObject();
+        metadata.addProperty("resourceVersion", String.valueOf(resourceVersion.get()));
+        list.add("metadata", metadata);
+        list.add("items", items);
+        return json(200, "OK", list);
+    }
+
+    private MockResponse read(@NotNull ResourceRef ref) {
+        var stored = objects.get(ref.key());
+        if (stored == null) {
+            return notFound(ref);
+        }
+
+        return json(200, "OK", stored.object);
+    }
+
+    private MockResponse create(@NotNull ResourceRef collection, String body) {
+        var object = new JsonParser().parse(body).getAsJsonObject();
+        var metadata = metadata(object);
+        var ref = new ResourceRef(collection.resource, collection.namespace, metadata.get("name").getAsString());
+        if (ref.namespace != null) {
+            metadata.addProperty("namespace", ref.namespace);
+        }
+        metadata.addProperty("resourceVersion", String.valueOf(resourceVersion.incrementAndGet()));
+
+        var stored = new StoredObject(ref, object);
+        var existing = objects.putIfAbsent(ref.key(), stored);
+        if (existing != null) {
+            var message = existing.isTerminating() ? "object is being deleted: " : "";
+            return status(409, "Conflict", "AlreadyExists",
+                    message + ref.resource + " \"" + ref.name + "\" already exists", ref);
+        }
+
+        if (WORKLOADS.contains(ref.resource)) {
+            startPod(ref, object);
+        }
+
+        return json(201, "Created", object);
+    }
+
+    /**
+     * Workloads get a single pod using the volumes of their template, so the claims in use can be told apart from
+     * dangling ones.
+     */
+    private void startPod(@NotNull ResourceRef workload, @NotNull JsonObject object) {
+        var pod = new JsonObject();
+        var metadata = new JsonObject();
+        metadata.addProperty("name", podName(workload));
+        metadata.addProperty("namespace", workload.namespace);
+        pod.add("metadata", metadata);
+
+        var template = object.has("spec") ? object.getAsJsonObject("spec").getAsJsonObject("template") : null;
+        pod.add("spec", template != null && template.has("spec") ? template.get("spec").deepCopy() : new JsonObject());
+        var ref = new ResourceRef("pods", workload.namespace, podName(workload));
+        objects.put(ref.key(), new StoredObject(ref, pod));
+    }
+
+    @NotNull
+    private static String podName(@NotNull ResourceRef workload) {
+        return workload.name + "-0";
+    }
+
+    private MockResponse patch(@NotNull ResourceRef ref, @NotNull RecordedRequest request) {
+        var stored = objects.get(ref.key());
+        if (stored == null) {
+            return notFound(ref);
+        }
+
+        var patch = new JsonParser().parse(request.getBody().readUtf8());
+        var contentType = request.getHeader("Content-Type");
+        synchronized (stored) {
+            if (patch.isJsonArray()) {
+                applyJsonPatch(stored.object, patch.getAsJsonArray());
+            } else if (contentType != null && contentType.startsWith(MERGE_PATCH)) {
+                merge(stored.object, patch.getAsJsonObject());
+            } else {
+                stored.object = patch.getAsJsonObject();
+            }
+            metadata(stored.object).addProperty("resourceVersion", String.valueOf(resourceVersion.incrementAndGet()));
+        }
+
+        return json(200, "OK", stored.object);
+    }
+
+    private MockResponse delete(@NotNull ResourceRef ref) {
+        var stored = objects.get(ref.key());
+        if (stored == null || stored.isTerminating()) {
+            return stored == null ? notFound(ref) : json(200, "OK", stored.object);
+        }
+
+        if (WORKLOADS.contains(ref.resource)) {
+            objects.remove(key("pods", ref.namespace, podName(ref)));
+        }
+
+        if (terminationDelay.isZero()) {
+            objects.remove(ref.key());
+        } else {
+            stored.deletedAt = System.nanoTime();
+            metadata(stored.object).addProperty("deletionTimestamp", Instant.now().truncatedTo(ChronoUnit.SECONDS).toString());
+        }
+
+        var status = new JsonObject();
+        status.addProperty("kind", "Status");
+        status.addProperty("apiVersion", "v1");
+        status.addProperty("status", "Success");
+        return json(200, "OK", status);
+    }
+
+    /**
+     * JSON merge patch as described in RFC 7386
+     */
+    private void merge(@NotNull JsonObject target, @NotNull JsonObject patch) {
+        patch.entrySet().forEach(entry -> {
+            var value = entry.getValue();
+            if (value.isJsonNull()) {
+                target.remove(entry.getKey());
+            } else if (value.isJsonObject() && target.has(entry.getKey()) && target.get(entry.getKey()).isJsonObject()) {
+                merge(target.getAsJsonObject(entry.getKey()), value.getAsJsonObject());
+            } else {
+                target.add(entry.getKey(), value);
+            }
+        });
+    }
+
+    /**
+     * The subset of RFC 6902 AutoCD uses: add, replace and remove of object members.
+     */
+    private void applyJsonPatch(@NotNull JsonObject target, @NotNull JsonArray operations) {
+        operations.forEach(element -> {
+            var operation = element.getAsJsonObject();
+            var path = operation.get("path").getAsString().substring(1).split("/");
+            JsonElement parent = target;
+            for (int i = 0; i < path.length - 1 && parent != null && parent.isJsonObject(); i++) {
+                parent = parent.getAsJsonObject().get(path[i]);
+            }
+
+            if (parent == null || !parent.isJsonObject()) {
+                return;
+            }
+
+            var last = path[path.length - 1];
+            if ("remove".equals(operation.get("op").getAsString())) {
+                parent.getAsJsonObject().remove(last);
+            } else {
+                parent.getAsJsonObject().add(last, operation.get("value"));
+            }
+        });
+    }
+
+    @NotNull
+    private JsonObject metadata(@NotNull JsonObject object) {
+        if (!object.has("metadata")) {
+            object.add("metadata", new JsonObject());
+        }
+        return object.getAsJsonObject("metadata");
+    }
+
+    private MockResponse notFound(@NotNull ResourceRef ref) {
+        return status(404, "Not Found", "NotFound", ref.resource + " \"" + ref.name + "\" not found", ref);
+    }
+
+    private MockResponse status(int code, String phrase, String reason, String message, @NotNull ResourceRef ref) {
+        var status = new JsonObject();
+        status.addProperty("kind", "Status");
+        status.addProperty("apiVersion", "v1");
+        status.add("metadata", new JsonObject());
+        status.addProperty("status", "Failure");
+        status.addProperty("message", message);
+        status.addProperty("reason", reason);
+        var details = new JsonObject();
+        details.addProperty("name", ref.name);
+        details.addProperty("kind", ref.resource);
+        status.add("details", details);
+        status.addProperty("code", code);
+        return json(code, phrase, status);
+    }
+
+    private MockResponse json(int code, String phrase, @NotNull JsonElement body) {
+        return new MockResponse()
+                .setStatus("HTTP/1.1 " + code + " " + phrase)
+                .setHeader("Content-Type", "application/json")
+                .setBody(body.toString());
+    }
+
+    private static String key(String resource, String namespace, String name) {
+        return resource + "/" + (namespace == null ? "" : namespace) + "/" + name;
+    }
+
+    private static class NoDelayServerSocketFactory extends ServerSocketFactory {
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new NoDelayServerSocket();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            var socket = createServerSocket();
+            socket.bind(new InetSocketAddress(port));
+            return socket;
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            var socket = createServerSocket();
+            socket.bind(new InetSocketAddress(port), backlog);
+            return socket;
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+            var socket = createServerSocket();
+            socket.bind(new InetSocketAddress(address, port), backlog);
+            return socket;
+        }
+    }
+
+    private static class NoDelayServerSocket extends ServerSocket {
+        private NoDelayServerSocket() throws IOException {
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            var socket = super.accept();
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+    }
+
+    private static class StoredObject {
+        private final ResourceRef ref;
+        private volatile JsonObject object;
+        private volatile long deletedAt = -1;
+
+        private StoredObject(ResourceRef ref, JsonObject object) {
+            this.ref = ref;
+            this.object = object;
+        }
+
+        private boolean isTerminating() {
+            return deletedAt >= 0;
+        }
+    }
+
+    /**
+     * The resource a request path refers to, e.g. /apis/apps/v1/namespaces/ns/statefulsets/name
+     */
+    private static class ResourceRef {
+        private final String resource;
+        private final String namespace;
+        private final String name;
+
+        private ResourceRef(String resource, String namespace, String name) {
+            this.resource = resource;
+            this.namespace = namespace;
+            this.name = name;
+        }
+
+        @NotNull
+        private static ResourceRef parse(@NotNull String requestPath) {
+            var path = requestPath.split("\\?")[0];
+            var segments = path.substring(1).split("/");
+            //Core resources live below /api/v1, all others below /apis/<group>/<version>
+            var start = "api".equals(segments[0]) ? 2 : 3;
+            var length = segments.length - start;
+
+            if (length >= 3 && "namespaces".equals(segments[start])) {
+                return new ResourceRef(segments[start + 2], segments[start + 1], length > 3 ? segments[start + 3] : null);
+            }
+
+            return new ResourceRef(segments[start], null, length > 1 ? segments[start + 1] : null);
+        }
+
+        private String key() {
+            return FakeKubeApiServer.key(resource, namespace, name);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package de.worldiety.autocd.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Creates project trees of a given size for the benchmarks. The files are spread over nested directories like in a
+ * real project, the file that determines the project type is the last one that is written.
+ */
+public final class SyntheticProject {
+    private static final int FILES_PER_DIRECTORY = 200;
+    private static final int DIRECTORIES_PER_DIRECTORY = 20;
+
+    private SyntheticProject() {
+    }
+
+    /**
+     * @param files  the number of files to create
+     * @param marker the name of the file that determines the project type, e.g. main.go
+     * @return the root of the created tree
+     */
+    @NotNull
+    public static Path create(int files, String marker) throws IOException {
+        var root = Files.createTempDirectory("autocd-bench");
+        var directories = (files + FILES_PER_DIRECTORY - 1) / FILES_PER_DIRECTORY;
+        var written = 0;
+
+        for (int dir = 0; dir < directories; dir++) {
+            var directory = root.resolve("src")
+                    .resolve("module-" + dir / DIRECTORIES_PER_DIRECTORY)
+                    .resolve("package-" + dir % DIRECTORIES_PER_DIRECTORY);
+            Files.createDirectories(directory);
+
+            for (int file = 0; file < FILES_PER_DIRECTORY && written < files - 1; file++, written++) {
+                Files.createFile(directory.resolve("file-" + file + ".txt"));
+            }
+        }
+
+        Files.writeString(root.resolve("src").resolve(marker), "");
+        return root;
+    }
+
+    public static void delete(@NotNull Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+}
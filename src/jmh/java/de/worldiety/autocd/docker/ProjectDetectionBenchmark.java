@@ -0,0 +1,60 @@
+package de.worldiety.autocd.docker;
+
+import de.worldiety.autocd.bench.SyntheticProject;
+import de.worldiety.autocd.util.FileType;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scans a synthetic project and detects its type. The trees are created once per trial, the larger ones take a while
+ * to write.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProjectDetectionBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int files;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private Path project;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        project = SyntheticProject.create(files, "main.go");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticProject.delete(project);
+    }
+
+    @Benchmark
+    public DockerfileHandler scan() {
+        return new DockerfileHandler(project.toString(), parallelism);
+    }
+
+    @Benchmark
+    public FileType scanAndDetect() {
+        return new DockerfileHandler(project.toString(), parallelism).getFileType();
+    }
+}
@@ -0,0 +1,187 @@
+package de.worldiety.autocd.k8s;
+
+import com.google.gson.GsonBuilder;
+import de.worldiety.autocd.bench.FakeKubeApiServer;
+import de.worldiety.autocd.bench.SyntheticProject;
+import de.worldiety.autocd.docker.DockerfileHandler;
+import de.worldiety.autocd.persistence.AutoCD;
+import de.worldiety.autocd.persistence.Volume;
+import io.kubernetes.client.apis.CoreV1Api;
+import io.kubernetes.client.custom.V1Patch;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deploys a configuration with otherImages against a FakeKubeApiServer. Next to the time per deployment, the
+ * requests per verb and resource and the transferred bytes are written to
+ * build/reports/jmh/deploy-traffic-&lt;params&gt;.json, averaged over all measured deployments.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeployBenchmark {
+    private static final Path REPORT_DIRECTORY = Path.of("build", "reports", "jmh");
+
+    @Param
+    public Scenario scenario;
+
+    @Param
+    public DeployMode mode;
+
+    @Param({"5"})
+    public int latencyMillis;
+
+    @Param({"0", "300"})
+    public int terminationMillis;
+
+    @Param({"4"})
+    public int otherImages;
+
+    private Path project;
+    private FakeKubeApiServer server;
+    private K8sClient client;
+    private AutoCD autoCD;
+    private final Map<String, Long> requests = new TreeMap<>();
+    private long bytesReceived;
+    private long bytesSent;
+    private long deployments;
+
+    public enum Scenario {
+        //First deployment into an empty namespace
+        DEPLOY,
+        //Deployment of a newly built image
+        REDEPLOY,
+        //Deployment of an unchanged configuration
+        REDEPLOY_UNCHANGED,
+        //Deployment with two replicas and a volume
+        STATEFUL,
+        REMOVE
+    }
+
+    @Setup(Level.Trial)
+    public void setUpProject() throws IOException {
+        project = SyntheticProject.create(100, "main.go");
+    }
+
+    @TearDown(Level.Trial)
+    public void writeReport() throws IOException {
+        var average = new TreeMap<String, Object>();
+        average.put("deployments", deployments);
+        average.put("requestsPerDeployment", requests.values().stream().mapToLong(Long::longValue).sum() / (double) deployments);
+        average.put("bytesReceivedPerDeployment", bytesReceived / (double) deployments);
+        average.put("bytesSentPerDeployment", bytesSent / (double) deployments);
+        average.put("requestsPerVerbAndResource", requests.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, it -> it.getValue() / (double) deployments, (a, b) -> a, TreeMap::new)));
+
+        Files.createDirectories(REPORT_DIRECTORY);
+        var name = "deploy-traffic-" + scenario + "-" + mode + "-" + latencyMillis + "-" + terminationMillis + "-" + otherImages + ".json";
+        Files.writeString(REPORT_DIRECTORY.resolve(name), new GsonBuilder().setPrettyPrinting().create().toJson(average));
+        SyntheticProject.delete(project);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        server = new FakeKubeApiServer();
+        server.setDefaultLatency(Duration.ofMillis(latencyMillis));
+        server.setTerminationDelay(Duration.ofMillis(terminationMillis));
+        server.start();
+
+        var apiClients = new ApiClients(server.getBasePath(), "token", null);
+        var api = new CoreV1Api(apiClients.create());
+        var patchApi = new CoreV1Api(apiClients.create(V1Patch.PATCH_FORMAT_JSON_PATCH));
+        var mergePatchApi = new CoreV1Api(apiClients.create(V1Patch.PATCH_FORMAT_JSON_MERGE_PATCH));
+        var context = new K8sContext("group-project-dev", "project-dev", "dev", "project");
+        client = new K8sClient(context, api, new DockerfileHandler(project.toString()), patchApi, "{}", mergePatchApi, mode);
+        autoCD = configuration(scenario == Scenario.STATEFUL);
+
+        if (scenario != Scenario.DEPLOY && scenario != Scenario.STATEFUL) {
+            deploy();
+            if (scenario == Scenario.REDEPLOY) {
+                forEach(autoCD, it -> it.setImageId("sha256:rebuilt"));
+            }
+            server.resetStatistics();
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        server.getRequestCounts().forEach((key, count) -> requests.merge(key, count, Long::sum));
+        bytesReceived += server.getBytesReceived();
+        bytesSent += server.getBytesSent();
+        deployments++;
+        server.close();
+    }
+
+    @Benchmark
+    public void run() {
+        if (scenario == Scenario.REMOVE) {
+            forEach(autoCD, client::removeDeploymentFromK8s);
+        } else {
+            deploy();
+        }
+    }
+
+    private void deploy() {
+        new DeploymentPlanner(DeploymentPlanner.DEFAULT_PARALLELISM).deploy(autoCD, client::deployToK8s);
+    }
+
+    @NotNull
+    private AutoCD configuration(boolean stateful) {
+        var root = image("main", stateful);
+        var children = new ArrayList<AutoCD>();
+        IntStream.range(0, otherImages).forEach(index -> {
+            var child = image("other-" + index, false);
+            child.setServiceName("service-other-" + index);
+            children.add(child);
+        });
+        root.setOtherImages(children);
+        return root;
+    }
+
+    @NotNull
+    private AutoCD image(String name, boolean stateful) {
+        var image = new AutoCD();
+        image.setRegistryImagePath("registry.worldiety.net/group/project/" + name + ":latest");
+        image.setImageId("sha256:" + name);
+        image.setSubdomains(List.of(name + ".project.cloudiety.de"));
+        if (stateful) {
+            image.setReplicas(2);
+            image.setVolumes(List.of(new Volume("/data", "1Gi", "777", false)));
+        } else {
+            image.setVolumes(List.of(new Volume("/data", "1Gi", "777", true)));
+        }
+        return image;
+    }
+
+    private void forEach(@NotNull AutoCD root, @NotNull Consumer<AutoCD> action) {
+        root.getOtherImages().forEach(it -> forEach(it, action));
+        action.accept(root);
+    }
+}
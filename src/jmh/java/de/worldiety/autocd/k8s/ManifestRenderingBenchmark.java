@@ -0,0 +1,112 @@
+package de.worldiety.autocd.k8s;
+
+import de.worldiety.autocd.bench.SyntheticProject;
+import de.worldiety.autocd.docker.DockerfileHandler;
+import de.worldiety.autocd.persistence.AutoCD;
+import de.worldiety.autocd.persistence.Volume;
+import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.apis.CoreV1Api;
+import io.kubernetes.client.models.ExtensionsV1beta1Deployment;
+import io.kubernetes.client.models.ExtensionsV1beta1Ingress;
+import io.kubernetes.client.models.ExtensionsV1beta1IngressRule;
+import io.kubernetes.client.models.ExtensionsV1beta1IngressSpec;
+import io.kubernetes.client.models.V1ObjectMeta;
+import io.kubernetes.client.models.V1PersistentVolumeClaim;
+import io.kubernetes.client.models.V1StatefulSet;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Renders the manifests of one configuration. No request is sent to the cluster, the host conflict check runs
+ * against an index of other namespaces' ingresses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ManifestRenderingBenchmark {
+    private static final int OTHER_INGRESSES = 2_000;
+
+    @Param({"1", "10", "100"})
+    public int subdomains;
+
+    @Param({"0", "10", "50"})
+    public int volumes;
+
+    private Path project;
+    private K8sClient client;
+    private AutoCD autoCD;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        project = SyntheticProject.create(100, "main.go");
+        var api = new CoreV1Api(new ApiClient());
+        var context = new K8sContext("group-project-dev", "project-dev", "dev", "project");
+        client = new K8sClient(context, api, new DockerfileHandler(project.toString()), api, "{}", api, DeployMode.RECREATE);
+        client.useIngressHostIndex(IngressHostIndex.of(IntStream.range(0, OTHER_INGRESSES)
+                .mapToObj(ManifestRenderingBenchmark::otherIngress)
+                .collect(Collectors.toList())));
+
+        autoCD = new AutoCD();
+        autoCD.setRegistryImagePath("registry.worldiety.net/group/project/dev:latest");
+        autoCD.setImageId("sha256:0123456789abcdef");
+        autoCD.setSubdomains(IntStream.range(0, subdomains)
+                .mapToObj(it -> "project-" + it + ".cloudiety.de")
+                .collect(Collectors.toList()));
+        autoCD.setVolumes(IntStream.range(0, volumes)
+                .mapToObj(it -> new Volume("/data/" + it, "1Gi", "777", false))
+                .collect(Collectors.toList()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticProject.delete(project);
+    }
+
+    private static ExtensionsV1beta1Ingress otherIngress(int index) {
+        var ingress = new ExtensionsV1beta1Ingress();
+        ingress.setMetadata(new V1ObjectMeta().namespace("other-" + index % 100).name("ingress-" + index));
+        ingress.setSpec(new ExtensionsV1beta1IngressSpec()
+                .addRulesItem(new ExtensionsV1beta1IngressRule().host("other-" + index + ".cloudiety.de")));
+        return ingress;
+    }
+
+    @Benchmark
+    public ExtensionsV1beta1Deployment deployment() {
+        return client.getDeployment(autoCD);
+    }
+
+    @Benchmark
+    public V1StatefulSet statefulSet() {
+        return client.getStatefulSet(autoCD);
+    }
+
+    @Benchmark
+    public List<ExtensionsV1beta1Ingress> ingress() {
+        return client.getIngress(autoCD);
+    }
+
+    @Benchmark
+    public List<V1PersistentVolumeClaim> claims() {
+        return client.getPersistentVolumeClaims(autoCD);
+    }
+}
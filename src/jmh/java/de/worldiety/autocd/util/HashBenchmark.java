@@ -0,0 +1,38 @@
+package de.worldiety.autocd.util;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashBenchmark {
+    //A typical input, namespace + name + registry image path
+    private final String input = "group-project-dev-project-dev-registry.worldiety.net/group/project/dev-0-claim";
+
+    @Benchmark
+    public String hash() {
+        return Util.hash(input);
+    }
+
+    @Benchmark
+    public String hashPrefix() {
+        return Util.hash(input, 20);
+    }
+
+    @Benchmark
+    public String buildSubdomain() {
+        return Util.buildSubdomain("dev", Util.hash(input, 5));
+    }
+}
@@ -1,8 +1,18 @@
 package de.worldiety.autocd;
 
 import com.google.gson.Gson;
+import de.worldiety.autocd.docker.BuildCache;
+import de.worldiety.autocd.docker.BuildMetrics;
+import de.worldiety.autocd.docker.Docker;
 import de.worldiety.autocd.docker.DockerfileHandler;
+import de.worldiety.autocd.docker.ImageBuildStage;
+import de.worldiety.autocd.docker.ProjectScanner;
+import de.worldiety.autocd.k8s.ApiClients;
+import de.worldiety.autocd.k8s.ClusterSnapshot;
+import de.worldiety.autocd.k8s.DeployMode;
+import de.worldiety.autocd.k8s.DeploymentPlanner;
 import de.worldiety.autocd.k8s.K8sClient;
+import de.worldiety.autocd.k8s.K8sContext;
 import de.worldiety.autocd.persistence.AutoCD;
 import de.worldiety.autocd.persistence.Volume;
 import de.worldiety.autocd.util.DockerconfigBuilder;
@@ -10,19 +20,16 @@ import de.worldiety.autocd.util.Environment;
 import de.worldiety.autocd.util.FileType;
 import de.worldiety.autocd.util.Util;
 import io.kubernetes.client.ApiClient;
-import io.kubernetes.client.Configuration;
 import io.kubernetes.client.apis.CoreV1Api;
 import io.kubernetes.client.custom.V1Patch;
-import io.kubernetes.client.util.ClientBuilder;
-import io.kubernetes.client.util.Config;
-import io.kubernetes.client.util.credentials.AccessTokenAuthentication;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,21 +42,16 @@ public class Main {
     private static final int BUILD_TYPE = 3;
 
     public static void main(String[] args) throws IOException {
-        ApiClient client;
-        client = Config.fromToken(args[KUBERNETES_URL], args[KUBERNETES_TOKEN]).setSslCaCert(new FileInputStream(args[CA_CERTIFICATE]));
-        Configuration.setDefaultApiClient(client);
+        // All clients share one connection pool, no global default client is used
+        var apiClients = ApiClients.of(args[KUBERNETES_URL], args[KUBERNETES_TOKEN], args[CA_CERTIFICATE]);
 
         String name = "autocd.json";
         var autoCD = getAutoCD(name, true);
         var oldAutoCD = getAutoCD("oldautocd.json", false);
         // A new API Client is created. Docker Credentials will be obtained from the Digital Oceans cluster configuration file
-        ApiClient strategicMergePatchClient = ClientBuilder.standard()
-                .setBasePath(args[0])
-                .setVerifyingSsl(true)
-                .setAuthentication(new AccessTokenAuthentication(args[1]))
-                .setOverridePatchFormat(V1Patch.PATCH_FORMAT_JSON_PATCH)
-                .build()
-                .setSslCaCert(new FileInputStream(args[2]));
+        ApiClient strategicMergePatchClient = apiClients.create(V1Patch.PATCH_FORMAT_JSON_PATCH);
+        // Used to update objects in place when reconciling
+        ApiClient mergePatchClient = apiClients.create(V1Patch.PATCH_FORMAT_JSON_MERGE_PATCH);
 
         var dockerCredentials = DockerconfigBuilder.getDockerConfig(
                 System.getenv(Environment.CI_REGISTRY.toString()),
@@ -64,58 +66,105 @@ public class Main {
             buildType = "dev";
         }
 
-        DockerfileHandler finder = new DockerfileHandler(".");
+        // An unchanged tree reuses the detected type and the image of the last build
+        var buildCache = openBuildCache(buildType);
+        var cached = buildCache.lookup();
+        DockerfileHandler finder = cached
+                .map(entry -> new DockerfileHandler(".", entry.getFileType()))
+                .orElseGet(() -> new DockerfileHandler(".",
+                        Util.getEnvInt(Environment.AUTOCD_SCAN_PARALLELISM, ProjectScanner.DEFAULT_PARALLELISM),
+                        Util.getEnvBoolean(Environment.AUTOCD_GIT_INDEX, true)));
 
         System.out.println("CI_PROJECT_NAME: " + System.getenv(Environment.CI_PROJECT_NAME.toString()));
         System.exit(0);
 
         //Creat the k8s client, CoreV1Api is needed for the client
         CoreV1Api patchApi = new CoreV1Api(strategicMergePatchClient);
-        CoreV1Api api = new CoreV1Api();
-        var k8sClient = new K8sClient(api, finder, buildType, patchApi, dockerCredentials);
-
-
-        /* This method checks for amy images which are referred in the main autoCD object
-           If invalid images are found, they will be removed from the cluster.
-           An image is invalid if there is no registry image path containing the name of the targeted image.
-        */
-
-        if (oldAutoCD != null) {
-            var validImageNames = autoCD.getOtherImages().stream()
-                    .map(AutoCD::getRegistryImagePath)
-                    .collect(Collectors.toList());
-
-            var containsInvalidImages = oldAutoCD.getOtherImages()
-                    .stream()
-                    .map(AutoCD::getRegistryImagePath)
-                    .anyMatch(o -> !validImageNames.contains(o));
-
-            if (containsInvalidImages) {
-                oldAutoCD.getOtherImages().forEach(image -> {
-                    setServiceNameForOtherImages(oldAutoCD, image);
-                    removeWithDependencies(image, k8sClient);
-                });
+        CoreV1Api api = new CoreV1Api(apiClients.create());
+        CoreV1Api mergePatchApi = new CoreV1Api(mergePatchClient);
+        var deployMode = DeployMode.of(System.getenv(Environment.AUTOCD_DEPLOY_MODE.toString()));
+        var context = K8sContext.fromEnvironment(buildType);
+        var k8sClient = new K8sClient(context, api, finder, patchApi, dockerCredentials, mergePatchApi, deployMode);
+
+        var snapshot = startSnapshot(apiClients, k8sClient);
+
+        try {
+            /* This method checks for amy images which are referred in the main autoCD object
+               If invalid images are found, they will be removed from the cluster.
+               An image is invalid if there is no registry image path containing the name of the targeted image.
+            */
+
+            if (oldAutoCD != null) {
+                var validImageNames = autoCD.getOtherImages().stream()
+                        .map(AutoCD::getRegistryImagePath)
+                        .collect(Collectors.toList());
+
+                var containsInvalidImages = oldAutoCD.getOtherImages()
+                        .stream()
+                        .map(AutoCD::getRegistryImagePath)
+                        .anyMatch(o -> !validImageNames.contains(o));
+
+                if (containsInvalidImages) {
+                    oldAutoCD.getOtherImages().forEach(image -> {
+                        setServiceNameForOtherImages(oldAutoCD, image);
+                        removeWithDependencies(image, k8sClient);
+                    });
+                }
             }
-        }
 
-        populateRegistryImagePath(autoCD, buildType, finder);
-        populateSubdomain(autoCD, buildType, autoCD.getSubdomainsEnv());
-        populateContainerPort(autoCD, finder);
+            // The project and the otherImages with a local Dockerfile are built concurrently with one docker client
+            var buildStage = new ImageBuildStage(new Docker(), Path.of("."),
+                    Util.getEnvInt(Environment.AUTOCD_BUILD_PARALLELISM, ImageBuildStage.DEFAULT_PARALLELISM));
+            populateRegistryImagePath(autoCD, buildType, finder, buildCache, cached.orElse(null), buildStage);
+            buildStage.addOtherImages(autoCD, buildType);
+            try {
+                buildStage.run();
+            } finally {
+                writeBuildMetrics(buildStage.getDocker());
+            }
+            populateSubdomain(autoCD, buildType, autoCD.getSubdomainsEnv());
+            populateContainerPort(autoCD, finder);
 
-        /* Checks if the app should be hosted on the cluster, if one decides to abandon the app, this method will
-            remove it if the tag 'isShouldHost' is set correctly (false)
-        */
+            /* Checks if the app should be hosted on the cluster, if one decides to abandon the app, this method will
+                remove it if the tag 'isShouldHost' is set correctly (false)
+            */
 
-        if (!autoCD.isShouldHost()) {
-            log.info("Service is being removed from k8s.");
-            removeWithDependencies(autoCD, k8sClient);
+            if (!autoCD.isShouldHost()) {
+                log.info("Service is being removed from k8s.");
+                removeWithDependencies(autoCD, k8sClient);
 
-            log.info("Not deploying to k8s because autocd is set to no hosting");
-            return;
+                log.info("Not deploying to k8s because autocd is set to no hosting");
+                return;
+            }
+
+            deployWithDependencies(autoCD, k8sClient, buildType);
+            log.info("Deployed to k8s with subdomain: " + autoCD.getSubdomains());
+        } finally {
+            if (snapshot != null) {
+                snapshot.stop();
+            }
         }
+    }
 
-        deployWithDependencies(autoCD, k8sClient, buildType);
-        log.info("Deployed to k8s with subdomain: " + autoCD.getSubdomains());
+    /**
+     * Starts watching the cluster state that is needed during the deployment, so it is not listed again for every
+     * service. If the state cannot be synced, the k8s client falls back to listing it on demand.
+     *
+     * @param apiClients the clients of the cluster
+     * @param k8sClient  the client that should use the snapshot
+     * @return the started snapshot or null
+     */
+    private static ClusterSnapshot startSnapshot(ApiClients apiClients, K8sClient k8sClient) {
+        var snapshot = new ClusterSnapshot(apiClients.createForWatches(), k8sClient.getNamespaceString());
+        try {
+            snapshot.start(ClusterSnapshot.DEFAULT_SYNC_TIMEOUT);
+        } catch (IllegalStateException e) {
+            log.warn("Could not sync cluster state, listing it on demand", e);
+            return null;
+        }
+
+        k8sClient.useSnapshot(snapshot);
+        return snapshot;
     }
 
     /**
@@ -132,24 +181,83 @@ public class Main {
     }
 
     /**
-     * If there is no image on the registry, creates new Dockerfile, builds an images and pushes it to the registry
-     * and sets its path in the autoCD object.
+     * @param buildType the build type
+     * @return the build cache of the current tree, disabled if AUTOCD_BUILD_CACHE is false
+     */
+    private static BuildCache openBuildCache(String buildType) {
+        if (!Util.getEnvBoolean(Environment.AUTOCD_BUILD_CACHE, true)) {
+            return BuildCache.DISABLED;
+        }
+        return BuildCache.open(getCacheDirectory(), Path.of("."), Docker.getRepository(), buildType);
+    }
+
+    /**
+     * @return the directory kept between pipelines, AUTOCD_CACHE_DIR or the default
+     */
+    private static Path getCacheDirectory() {
+        var directory = System.getenv(Environment.AUTOCD_CACHE_DIR.toString());
+        if (directory == null || directory.isBlank()) {
+            directory = BuildCache.DEFAULT_DIRECTORY;
+        }
+        return Path.of(directory);
+    }
+
+    /**
+     * Writes the timings of the builds of this run to AUTOCD_METRICS_FILE and adds them to the history in the cache
+     * directory, which flags regressions against the previous pipelines.
+     *
+     * @param docker the client that built the images
+     */
+    private static void writeBuildMetrics(Docker docker) {
+        var reportFile = System.getenv(Environment.AUTOCD_METRICS_FILE.toString());
+        if (reportFile == null || reportFile.isBlank()) {
+            reportFile = BuildMetrics.DEFAULT_REPORT_FILE;
+        }
+        docker.getMetrics().write(Path.of(reportFile), getCacheDirectory().resolve(BuildMetrics.HISTORY_FILE));
+    }
+
+    /**
+     * If there is no image on the registry, creates new Dockerfile and adds the build of the image to the build stage,
+     * which pushes it to the registry and sets its path in the autoCD object. If the same tree was built before, the
+     * image of that build is tagged with the build type instead.
      *
      * @param autoCD
      * @param buildType
      * @param finder
+     * @param buildCache
+     * @param cached     the entry of the build cache for the current tree, null if there is none
+     * @param buildStage the stage the build is added to, it runs when the stage is run
      */
-    private static void populateRegistryImagePath(AutoCD autoCD, String buildType, DockerfileHandler finder) {
+    private static void populateRegistryImagePath(AutoCD autoCD, String buildType, DockerfileHandler finder,
+                                                  BuildCache buildCache, BuildCache.Entry cached, ImageBuildStage buildStage) {
         if (autoCD.getRegistryImagePath() == null || autoCD.getRegistryImagePath().isEmpty()) {
+            var docker = buildStage.getDocker();
+            if (cached != null) {
+                var promoted = docker.promote(buildCache.getImmutableTag(buildType), buildType);
+                if (promoted.isPresent()) {
+                    log.info("Reusing " + cached.getRegistryImagePath() + ", the tree did not change since it was built");
+                    autoCD.setRegistryImagePath(promoted.get().getReference());
+                    autoCD.setImageId(promoted.get().getImageId());
+                    return;
+                }
+                log.warn("The cached image is gone, building it again");
+            }
+
             var dockerFile = new File("Dockerfile");
+            var config = dockerFile.exists()
+                    ? Optional.of(dockerFile.getAbsoluteFile())
+                    : finder.findDockerConfig(docker.isBuildKitEnabled());
 
-            if (!dockerFile.exists()) {
-                finder.findDockerConfig().ifPresent(config -> {
-                    Util.pushDockerAndSetPath(config, autoCD, buildType);
-                });
-            } else {
-                Util.pushDockerAndSetPath(dockerFile.getAbsoluteFile(), autoCD, buildType);
-            }
+            config.ifPresent(file -> buildStage.add(Docker.getRepository(), () -> {
+                if (!buildCache.isEnabled()) {
+                    return Util.pushDockerAndSetPath(docker, file, autoCD, buildType, List.of(), finder.getFileType());
+                }
+
+                var immutableTag = buildCache.getImmutableTag(buildType);
+                var image = Util.pushDockerAndSetPath(docker, file, autoCD, buildType, List.of(immutableTag), finder.getFileType());
+                buildCache.store(new BuildCache.Entry(finder.getFileType(), Docker.getRepository() + ":" + immutableTag));
+                return image;
+            }));
         }
     }
 
@@ -229,26 +337,33 @@ public class Main {
 
     /**
      * If there are dependencies found within the main service, those services will be deployed as well.
+     * Independent services are deployed concurrently, a service is only deployed after its own dependencies.
      *
      * @param autoCD
      * @param k8sClient
      * @param buildType
      */
     private static void deployWithDependencies(AutoCD autoCD, K8sClient k8sClient, String buildType) {
-        validateConfig(autoCD);
-        if (!autoCD.getOtherImages().isEmpty()) {
-            autoCD.getOtherImages().forEach(config -> {
-                populateSubdomain(config, buildType, autoCD.getSubdomainsEnv());
-
-                if (!config.getOtherImages().isEmpty()) {
-                    deployWithDependencies(config, k8sClient, buildType);
-                }
-                setServiceNameForOtherImages(autoCD, config);
-                k8sClient.deployToK8s(config);
-            });
-        }
+        prepareDependencies(autoCD, buildType);
+        var planner = new DeploymentPlanner(Util.getEnvInt(Environment.AUTOCD_DEPLOY_PARALLELISM, DeploymentPlanner.DEFAULT_PARALLELISM));
+        planner.deploy(autoCD, k8sClient::deployToK8s);
+        k8sClient.getDeletionAwaiter().logWaitTimes();
+    }
 
-        k8sClient.deployToK8s(autoCD);
+    /**
+     * Validates the configurations and populates the subdomains and service names of all dependencies before any of
+     * them gets deployed.
+     *
+     * @param autoCD
+     * @param buildType
+     */
+    private static void prepareDependencies(AutoCD autoCD, String buildType) {
+        validateConfig(autoCD);
+        autoCD.getOtherImages().forEach(config -> {
+            populateSubdomain(config, buildType, autoCD.getSubdomainsEnv());
+            prepareDependencies(config, buildType);
+            setServiceNameForOtherImages(autoCD, config);
+        });
     }
 
     /**
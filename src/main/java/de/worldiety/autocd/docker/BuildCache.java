@@ -0,0 +1,253 @@
+package de.worldiety.autocd.docker;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import de.worldiety.autocd.util.FileType;
+import de.worldiety.autocd.util.Util;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which image was built from which build context, so a pipeline for an unchanged tree deploys the image
+ * pushed before instead of detecting the project type and building it again.
+ * <p>
+ * The key is a hash over the tracked files of the build context, their paths, modes and blob ids as recorded in the
+ * git index, together with the build type, the repository and the Dockerfile templates of autoCD. Untracked files
+ * are not part of the key. If a tracked file was changed after the checkout, or the project is no git checkout, the
+ * cache is disabled. Every entry is a json file named after its key.
+ */
+public class BuildCache {
+    private static final Logger log = LoggerFactory.getLogger(BuildCache.class);
+    public static final String DEFAULT_DIRECTORY = ".autocd-cache";
+    public static final BuildCache DISABLED = new BuildCache(null, null);
+    //Bump when the key or the entries change
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_ENTRIES = 50;
+    private final Path directory;
+    private final String key;
+
+    private BuildCache(Path directory, String key) {
+        this.directory = directory;
+        this.key = key;
+    }
+
+    /**
+     * @param directory  the directory holding the entries, kept between pipelines by the CI
+     * @param root       the project root
+     * @param repository the repository the images are pushed to, without tag
+     * @param buildType  the build type
+     * @return the cache for the current tree, DISABLED if no key can be computed for it
+     */
+    @NotNull
+    public static BuildCache open(@NotNull Path directory, @NotNull Path root, String repository, String buildType) {
+        try {
+            var index = GitIndexReader.findIndex(root);
+            if (index == null || !Files.isRegularFile(index)) {
+                log.info("Build cache disabled, " + root.toAbsolutePath().normalize() + " is no git checkout");
+                return DISABLED;
+            }
+
+            var key = computeKey(root, GitIndexReader.readEntries(index), repository, buildType);
+            return key == null ? DISABLED : new BuildCache(directory, key);
+        } catch (IOException e) {
+            log.warn("Build cache disabled, the git index could not be read", e);
+            return DISABLED;
+        }
+    }
+
+    private static String computeKey(@NotNull Path root, @NotNull Iterable<GitIndexReader.Entry> entries, String repository,
+                                     String buildType) throws IOException {
+        var digest = Util.newSha256();
+        update(digest, "autocd-build-cache-" + FORMAT_VERSION);
+        update(digest, repository);
+        update(digest, buildType);
+        updateTemplates(digest);
+
+        var dockerignore = IgnoreRules.dockerignore(root);
+        for (var entry : entries) {
+            var file = root.resolve(entry.getPath());
+            if (dockerignore.isIgnored(file, false)) {
+                continue;
+            }
+
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                log.info("Build cache disabled, " + entry.getPath() + " is missing from the working tree");
+                return null;
+            }
+            if (!entry.matches(attributes)) {
+                log.info("Build cache disabled, " + entry.getPath() + " was changed after the checkout");
+                return null;
+            }
+
+            update(digest, entry.getPath());
+            update(digest, Integer.toOctalString(entry.getMode()));
+            digest.update(entry.getObjectId());
+        }
+
+        return Util.bytesToHex(digest.digest());
+    }
+
+    private static void updateTemplates(@NotNull MessageDigest digest) throws IOException {
+        update(digest, "run-build-part");
+        updateResource(digest, "run-build-part");
+        for (var type : FileType.values()) {
+            update(digest, type.name());
+            update(digest, type.getDefaultBuild());
+            update(digest, type.getDependencyStep());
+            update(digest, String.join(",", type.getManifestFiles()));
+            if (type.getDockerConfig() != null) {
+                updateResource(digest, type.getDockerConfig());
+            }
+            if (type.getFinalDocker() != null) {
+                updateResource(digest, type.getFinalDocker());
+            }
+        }
+    }
+
+    private static void updateResource(@NotNull MessageDigest digest, String name) throws IOException {
+        try (InputStream in = BuildCache.class.getClassLoader().getResourceAsStream(name)) {
+            if (in != null) {
+                digest.update(in.readAllBytes());
+            }
+        }
+    }
+
+    private static void update(@NotNull MessageDigest digest, String value) {
+        digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    public boolean isEnabled() {
+        return key != null;
+    }
+
+    /**
+     * The tag is derived from the tree, so unlike the tag of the build type it always refers to the image built from
+     * it.
+     *
+     * @param buildType the build type
+     * @return the tag to push the image with in addition to the tag of the build type
+     */
+    @NotNull
+    public String getImmutableTag(String buildType) {
+        if (key == null) {
+            throw new IllegalStateException("The build cache is disabled");
+        }
+        return buildType + "-" + key;
+    }
+
+    /**
+     * @return the entry stored for the current tree
+     */
+    @NotNull
+    public Optional<Entry> lookup() {
+        if (key == null) {
+            return Optional.empty();
+        }
+
+        var file = directory.resolve(key + ".json");
+        if (!Files.isRegularFile(file)) {
+            log.info("Build cache miss for " + key);
+            return Optional.empty();
+        }
+
+        try {
+            var entry = new Gson().fromJson(Files.readString(file), Entry.class);
+            if (entry == null || entry.getFileType() == null || entry.getRegistryImagePath() == null) {
+                log.warn("Ignoring the incomplete build cache entry " + file);
+                return Optional.empty();
+            }
+            log.info("Build cache hit for " + key + ", built as " + entry.getRegistryImagePath());
+            return Optional.of(entry);
+        } catch (IOException | JsonParseException e) {
+            log.warn("Ignoring the unreadable build cache entry " + file, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stores the entry for the current tree and drops the oldest entries. Failures are logged, the cache is only an
+     * optimization.
+     *
+     * @param entry the result of the build
+     */
+    public void store(@NotNull Entry entry) {
+        if (key == null) {
+            return;
+        }
+
+        try {
+            Files.createDirectories(directory);
+            var temp = Files.createTempFile(directory, key, ".tmp");
+            Files.writeString(temp, new Gson().toJson(entry));
+            Files.move(temp, directory.resolve(key + ".json"), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            evict();
+        } catch (IOException e) {
+            log.warn("Could not store the build cache entry for " + key, e);
+        }
+    }
+
+    private void evict() throws IOException {
+        try (var files = Files.list(directory)) {
+            var entries = files
+                    .filter(it -> it.getFileName().toString().endsWith(".json"))
+                    .sorted(Comparator.comparing(BuildCache::lastModified).reversed())
+                    .collect(Collectors.toList());
+
+            for (var old : entries.subList(Math.min(MAX_ENTRIES, entries.size()), entries.size())) {
+                Files.deleteIfExists(old);
+            }
+        }
+    }
+
+    @NotNull
+    private static FileTime lastModified(@NotNull Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * What was built from a tree.
+     */
+    public static class Entry {
+        private FileType fileType;
+        private String registryImagePath;
+
+        public Entry(FileType fileType, String registryImagePath) {
+            this.fileType = fileType;
+            this.registryImagePath = registryImagePath;
+        }
+
+        public FileType getFileType() {
+            return fileType;
+        }
+
+        /**
+         * @return the image with its immutable tag
+         */
+        public String getRegistryImagePath() {
+            return registryImagePath;
+        }
+    }
+}
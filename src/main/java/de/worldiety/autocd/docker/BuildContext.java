@@ -0,0 +1,370 @@
+package de.worldiety.autocd.docker;
+
+import de.worldiety.autocd.util.FileType;
+import de.worldiety.autocd.util.Util;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipParameters;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The build context of a Dockerfile: its directory without the paths excluded by the default patterns of the project
+ * type and the .dockerignore. The directory is walked once, the result is used for the content digest and for the
+ * tar that is streamed to the docker daemon.
+ * <p>
+ * The digest covers the Dockerfile and every path with the content of files, the target of links and the executable
+ * bit. Modification times are not part of it, so a fresh checkout of the same tree has the same digest.
+ */
+public final class BuildContext {
+    public static final int DEFAULT_COMPRESSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final Path root;
+    private final Path dockerfile;
+    private final List<Entry> entries;
+
+    private BuildContext(Path root, Path dockerfile, List<Entry> entries) {
+        this.root = root;
+        this.dockerfile = dockerfile;
+        this.entries = entries;
+    }
+
+    /**
+     * @param dockerfile the Dockerfile, its directory is the build context
+     * @param fileType   the type of the project, its default patterns are applied before the .dockerignore
+     * @return the listed build context
+     */
+    @NotNull
+    public static BuildContext of(@NotNull File dockerfile, @NotNull FileType fileType) throws IOException {
+        var path = dockerfile.getAbsoluteFile().toPath();
+        var root = path.getParent();
+        var rules = IgnoreRules.dockerignore(root, fileType.getDefaultDockerignore());
+        return new BuildContext(root, path, list(root, path, rules));
+    }
+
+    @NotNull
+    private static List<Entry> list(@NotNull Path root, @NotNull Path dockerfile, @NotNull IgnoreRules rules) throws IOException {
+        var entries = new ArrayList<Entry>();
+        var dockerignore = root.resolve(".dockerignore");
+
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(root)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (rules.isIgnored(dir, true)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                entries.add(new Entry(root, dir, Kind.DIRECTORY, 0));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                //Like the docker cli, the Dockerfile and the .dockerignore are always sent
+                if (!rules.isIgnored(file, false) || file.equals(dockerfile) || file.equals(dockerignore)) {
+                    var kind = attrs.isSymbolicLink() ? Kind.LINK : Files.isExecutable(file) ? Kind.EXECUTABLE : Kind.FILE;
+                    entries.add(new Entry(root, file, kind, attrs.size()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        entries.sort(Comparator.comparing(it -> it.name));
+        return entries;
+    }
+
+    /**
+     * @return the path of the Dockerfile within the context, separated by /
+     */
+    @NotNull
+    public String getDockerfilePath() {
+        return root.relativize(dockerfile).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * @return the number of files, links and directories in the context
+     */
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the size of all files in the context
+     */
+    public long getSize() {
+        return entries.stream().filter(it -> it.kind != Kind.DIRECTORY).mapToLong(it -> it.size).sum();
+    }
+
+    /**
+     * @return the hex encoded SHA-256 digest of the Dockerfile and the context
+     */
+    @NotNull
+    public String digest() throws IOException {
+        //Hashing the files is the expensive part, the combined digest is built in path order afterwards
+        var hashes = new byte[entries.size()][];
+        try {
+            IntStream.range(0, entries.size()).parallel().forEach(i -> hashes[i] = entries.get(i).hash());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        var digest = Util.newSha256();
+        update(digest, "Dockerfile");
+        digest.update(Files.readAllBytes(dockerfile));
+        for (int i = 0; i < entries.size(); i++) {
+            update(digest, entries.get(i).name);
+            update(digest, entries.get(i).kind.name());
+            digest.update(hashes[i]);
+        }
+        return Util.bytesToHex(digest.digest());
+    }
+
+    /**
+     * Writes the context as tar on a background thread. The daemon starts reading while the files are still being
+     * archived, nothing is buffered in memory or on disk.
+     *
+     * @param compressionLevel the gzip level from 1 to 9, 0 sends an uncompressed tar
+     * @return the stream of the tar, reading it fails if writing the tar failed
+     */
+    @NotNull
+    public Upload stream(int compressionLevel) throws IOException {
+        var in = new PipedInputStream(BUFFER_SIZE);
+        var out = new PipedOutputStream(in);
+        var upload = new Upload(in);
+
+        Util.daemonThreadFactory("autocd-build-context").newThread(() -> {
+            var counting = new CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE), upload.sentBytes);
+            try {
+                var tar = new TarArchiveOutputStream(compress(counting, compressionLevel));
+                tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+                tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+                for (var entry : entries) {
+                    entry.write(tar);
+                }
+                //Writes the end of the tar and the gzip trailer, only on success since a finished tar looks complete
+                tar.close();
+            } catch (IOException | RuntimeException e) {
+                upload.failure.set(e instanceof IOException ? (IOException) e : new IOException(e));
+            } finally {
+                upload.finishedNanos.set(System.nanoTime());
+                //The pipe is only closed here, after a failure has been recorded, so the reader never takes a
+                //truncated tar for the whole context
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                    //The reader sees the end of the stream or the failure
+                }
+            }
+        }).start();
+
+        return upload;
+    }
+
+    @NotNull
+    private static OutputStream compress(@NotNull OutputStream out, int level) throws IOException {
+        if (level <= 0) {
+            return out;
+        }
+
+        var parameters = new GzipParameters();
+        parameters.setCompressionLevel(Math.min(level, 9));
+        return new GzipCompressorOutputStream(out, parameters);
+    }
+
+    private static void update(@NotNull MessageDigest digest, @NotNull String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    /**
+     * The tar of a context while it is sent to the daemon.
+     */
+    public static final class Upload extends InputStream {
+        private final InputStream in;
+        private final long startNanos = System.nanoTime();
+        private final AtomicLong sentBytes = new AtomicLong();
+        private final AtomicLong finishedNanos = new AtomicLong();
+        private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+        private Upload(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var read = in.read();
+            if (read == -1) {
+                checkFailure();
+            }
+            return read;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            var read = in.read(b, off, len);
+            if (read == -1) {
+                checkFailure();
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void checkFailure() throws IOException {
+            var e = failure.get();
+            if (e != null) {
+                throw new IOException("Writing the build context failed", e);
+            }
+        }
+
+        /**
+         * @return the bytes of the tar, after compression
+         */
+        public long getSentBytes() {
+            return sentBytes.get();
+        }
+
+        /**
+         * @return the time until the daemon read the whole context, or until now if it did not yet
+         */
+        public long getUploadNanos() {
+            var finished = finishedNanos.get();
+            return (finished == 0 ? System.nanoTime() : finished) - startNanos;
+        }
+    }
+
+    private enum Kind {
+        DIRECTORY, FILE, EXECUTABLE, LINK
+    }
+
+    private static final class Entry {
+        private final Path path;
+        private final String name;
+        private final Kind kind;
+        private final long size;
+
+        private Entry(Path root, Path path, Kind kind, long size) {
+            this.path = path;
+            this.name = root.relativize(path).toString().replace(File.separatorChar, '/');
+            this.kind = kind;
+            this.size = size;
+        }
+
+        @NotNull
+        private byte[] hash() {
+            try {
+                switch (kind) {
+                    case LINK:
+                        return Files.readSymbolicLink(path).toString().getBytes(StandardCharsets.UTF_8);
+                    case DIRECTORY:
+                        return new byte[0];
+                    default:
+                        return hashFile();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @NotNull
+        private byte[] hashFile() throws IOException {
+            var digest = Util.newSha256();
+            var buffer = new byte[BUFFER_SIZE];
+            try (InputStream in = Files.newInputStream(path, LinkOption.NOFOLLOW_LINKS)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            return digest.digest();
+        }
+
+        private void write(@NotNull TarArchiveOutputStream tar) throws IOException {
+            TarArchiveEntry tarEntry;
+            switch (kind) {
+                case DIRECTORY:
+                    tarEntry = new TarArchiveEntry(name + "/");
+                    tarEntry.setMode(TarArchiveEntry.DEFAULT_DIR_MODE);
+                    break;
+                case LINK:
+                    tarEntry = new TarArchiveEntry(name, TarConstants.LF_SYMLINK);
+                    tarEntry.setLinkName(Files.readSymbolicLink(path).toString());
+                    break;
+                default:
+                    tarEntry = new TarArchiveEntry(name);
+                    tarEntry.setMode(kind == Kind.EXECUTABLE ? 0100755 : TarArchiveEntry.DEFAULT_FILE_MODE);
+                    tarEntry.setSize(Files.size(path));
+            }
+            tarEntry.setModTime(Files.getLastModifiedTime(path, LinkOption.NOFOLLOW_LINKS).toMillis());
+
+            tar.putArchiveEntry(tarEntry);
+            if (kind == Kind.FILE || kind == Kind.EXECUTABLE) {
+                Files.copy(path, tar);
+            }
+            tar.closeArchiveEntry();
+        }
+    }
+
+    /**
+     * Counts the bytes written to the stream. Closing it only flushes, the stream below is closed by its owner.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final AtomicLong count;
+
+        private CountingOutputStream(OutputStream out, AtomicLong count) {
+            this.out = out;
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count.addAndGet(len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
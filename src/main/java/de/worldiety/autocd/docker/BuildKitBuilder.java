@@ -0,0 +1,200 @@
+package de.worldiety.autocd.docker;
+
+import de.worldiety.autocd.util.Util;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds images with BuildKit through the docker CLI, docker-java only talks to the classic builder. BuildKit keeps
+ * the directories mounted by RUN --mount=type=cache between builds on the same daemon, so a changed dependency does
+ * not download all others again.
+ * <p>
+ * The build context is listed and streamed by autoCD like for the classic builder, the CLI reads it from stdin.
+ */
+final class BuildKitBuilder {
+    private static final Logger log = LoggerFactory.getLogger(BuildKitBuilder.class);
+    private static final long PROBE_TIMEOUT_SECONDS = 10;
+    private static final Pattern SERVER_VERSION = Pattern.compile("(\\d+)\\.(\\d+).*");
+    //Plain progress prints a line per step, e.g. "#7 [builder 3/6] RUN npm install", and "#7 CACHED" if it was reused
+    private static final Pattern STEP = Pattern.compile("^#(\\d+) \\[[^\\]]*\\d+/\\d+\\] .*");
+    private static final Pattern CACHED = Pattern.compile("^#(\\d+) CACHED\\s*$");
+    private final int compressionLevel;
+
+    /**
+     * @param compressionLevel the gzip level of the build context, 0 sends it uncompressed
+     */
+    BuildKitBuilder(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @return true if the docker CLI is installed and the daemon supports BuildKit, which it does since 18.09
+     */
+    static boolean isAvailable() {
+        File outputFile = null;
+        try {
+            //The output goes to a file, reading it from the process would block until the CLI exits
+            outputFile = File.createTempFile("autocd-docker-version", null);
+            var process = new ProcessBuilder("docker", "version", "--format", "{{.Server.Version}}")
+                    .redirectErrorStream(true)
+                    .redirectOutput(outputFile)
+                    .start();
+            if (!process.waitFor(PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                log.info("BuildKit is not available, docker version did not answer within " + PROBE_TIMEOUT_SECONDS + "s");
+                return false;
+            }
+
+            var output = Files.readString(outputFile.toPath()).strip();
+            if (process.exitValue() != 0) {
+                log.info("BuildKit is not available, docker version failed: " + output);
+                return false;
+            }
+
+            var matcher = SERVER_VERSION.matcher(output);
+            if (!matcher.matches()) {
+                log.info("BuildKit is not available, unknown docker version " + output);
+                return false;
+            }
+            var major = Integer.parseInt(matcher.group(1));
+            var minor = Integer.parseInt(matcher.group(2));
+            return major > 18 || major == 18 && minor >= 9;
+        } catch (IOException e) {
+            log.info("BuildKit is not available, the docker CLI could not be run: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (outputFile != null && !outputFile.delete()) {
+                outputFile.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * @param configFile the Dockerfile
+     * @param context    the build context, null to let the CLI send the directory of the Dockerfile
+     * @param tags       the tags of the image
+     * @param target     the stage to build, null for the whole Dockerfile
+     * @param cacheFrom  the images whose layers may be reused
+     * @param sink       the log of the build
+     * @param metrics    the metrics of the image
+     * @return the id of the image
+     */
+    String build(@NotNull File configFile, BuildContext context, Set<String> tags, String target, Set<String> cacheFrom,
+                 @NotNull BuildLogSink sink, @NotNull BuildMetrics.ImageMetrics metrics) {
+        File iidFile = null;
+        try {
+            iidFile = File.createTempFile("autocd-iid", null);
+            var command = new ArrayList<>(List.of("docker", "build", "--progress=plain",
+                    "--iidfile", iidFile.getAbsolutePath(),
+                    //Images built now can be used with --cache-from by the next build
+                    "--build-arg", "BUILDKIT_INLINE_CACHE=1"));
+            tags.forEach(tag -> command.addAll(List.of("--tag", tag)));
+            if (target != null) {
+                command.addAll(List.of("--target", target));
+            }
+            cacheFrom.forEach(image -> command.addAll(List.of("--cache-from", image)));
+
+            if (context == null) {
+                command.addAll(List.of("--file", configFile.getAbsolutePath(), configFile.getAbsoluteFile().getParent()));
+            } else {
+                command.addAll(List.of("--file", context.getDockerfilePath(), "-"));
+            }
+
+            var processBuilder = new ProcessBuilder(command).redirectErrorStream(true);
+            processBuilder.environment().put("DOCKER_BUILDKIT", "1");
+            var process = processBuilder.start();
+
+            BuildContext.Upload upload = null;
+            if (context == null) {
+                process.getOutputStream().close();
+            } else {
+                upload = context.stream(compressionLevel);
+                sendContext(upload, process);
+            }
+
+            var exitCode = logOutput(process, sink, metrics);
+            if (exitCode != 0) {
+                throw new IllegalStateException("docker build failed with exit code " + exitCode);
+            }
+            if (upload != null) {
+                log.info(String.format("Sent a build context of %d entries and %d KiB as %d KiB in %d ms",
+                        context.getEntryCount(), context.getSize() / 1024, upload.getSentBytes() / 1024,
+                        upload.getUploadNanos() / 1_000_000));
+                metrics.contextUploaded(upload.getSentBytes(), upload.getUploadNanos());
+            }
+            return Files.readString(iidFile.toPath()).strip();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not build " + configFile + " with BuildKit", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building " + configFile, e);
+        } finally {
+            if (iidFile != null && !iidFile.delete()) {
+                iidFile.deleteOnExit();
+            }
+        }
+    }
+
+    private static void sendContext(@NotNull BuildContext.Upload upload, @NotNull Process process) {
+        Util.daemonThreadFactory("autocd-buildkit-context").newThread(() -> {
+            try (upload; var stdin = process.getOutputStream()) {
+                upload.transferTo(stdin);
+            } catch (IOException e) {
+                //The CLI fails on the truncated context and its output is logged
+                log.warn("Could not send the build context to the docker CLI", e);
+            }
+        }).start();
+    }
+
+    /**
+     * Logs the output of the CLI and how many steps BuildKit took from its cache.
+     *
+     * @return the exit code of the CLI
+     */
+    private static int logOutput(@NotNull Process process, @NotNull BuildLogSink sink,
+                                 @NotNull BuildMetrics.ImageMetrics metrics) throws IOException, InterruptedException {
+        var steps = new HashSet<String>();
+        var cached = new HashSet<String>();
+
+        try (var reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sink.line(line);
+                metrics.onBuildOutput(line);
+                var step = STEP.matcher(line);
+                if (step.matches()) {
+                    steps.add(step.group(1));
+                    continue;
+                }
+                var hit = CACHED.matcher(line);
+                if (hit.matches()) {
+                    cached.add(hit.group(1));
+                }
+            }
+        }
+
+        var exitCode = process.waitFor();
+        cached.retainAll(steps);
+        if (!steps.isEmpty()) {
+            sink.line(String.format("BuildKit reused %d of %d steps from its cache (%d%%)", cached.size(), steps.size(),
+                    cached.size() * 100 / steps.size()));
+        }
+        return exitCode;
+    }
+}
@@ -0,0 +1,176 @@
+package de.worldiety.autocd.docker;
+
+import com.github.dockerjava.api.model.ResponseItem;
+import de.worldiety.autocd.util.Util;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs the output of a build or push on its own daemon thread. The docker callbacks only put the output into a
+ * bounded queue and never wait for the log: output that does not fit is dropped and counted. Errors bypass the queue
+ * and are logged right away.
+ * <p>
+ * Build output is logged in batches. Layer progress is not logged line by line, it is collapsed into a summary of
+ * the layers done and the transfer rate that is logged every few seconds and once at the end.
+ */
+final class BuildLogSink implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(BuildLogSink.class);
+    private static final int QUEUE_CAPACITY = 10_000;
+    private static final long FLUSH_INTERVAL_MILLIS = 500;
+    private static final long SUMMARY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final Set<String> LAYER_DONE = Set.of("Pushed", "Layer already exists", "Already exists",
+            "Download complete", "Pull complete", "Mounted from");
+    private final String name;
+    private final BlockingQueue<String> lines = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Map<String, Layer> layers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+    private final long startNanos = System.nanoTime();
+    private long lastSummaryNanos = startNanos;
+    private long lastSummaryBytes;
+
+    /**
+     * @param name the build or push, prefixes every log entry
+     */
+    BuildLogSink(@NotNull String name) {
+        this.name = name;
+        this.executor = Executors.newSingleThreadScheduledExecutor(Util.daemonThreadFactory("autocd-log"));
+        executor.scheduleWithFixedDelay(() -> flush(false), FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param line a line of build output, blank lines and the dots of the classic builder are skipped
+     */
+    void line(String line) {
+        if (line == null) {
+            return;
+        }
+
+        var stripped = line.stripTrailing();
+        if (stripped.isBlank() || stripped.equals(".")) {
+            return;
+        }
+        if (!lines.offer(stripped)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Items with a layer id only update the progress of their layer, errors are logged right away and all others are
+     * logged as output.
+     *
+     * @param item an item of a build, push or pull stream
+     */
+    void item(@NotNull ResponseItem item) {
+        if (item.getErrorDetail() != null) {
+            error(item.getErrorDetail().getMessage());
+            return;
+        }
+        if (item.getId() == null || item.getStatus() == null) {
+            line(item.getStream() != null ? item.getStream() : item.getStatus());
+            return;
+        }
+
+        var layer = layers.computeIfAbsent(item.getId(), it -> new Layer());
+        var detail = item.getProgressDetail();
+        if (detail != null && detail.getCurrent() != null) {
+            layer.current = detail.getCurrent();
+            if (detail.getTotal() != null && detail.getTotal() > 0) {
+                layer.total = detail.getTotal();
+            }
+        }
+        if (LAYER_DONE.stream().anyMatch(item.getStatus()::startsWith)) {
+            layer.current = Math.max(layer.current, layer.total);
+            layer.done = true;
+        }
+    }
+
+    /**
+     * Logs an error directly instead of queueing it, so it is never dropped. The output queued before is logged first.
+     *
+     * @param message the error of the build or push
+     */
+    private synchronized void error(String message) {
+        flushLines();
+        log.error(name + ": " + message);
+    }
+
+    private synchronized void flush(boolean last) {
+        flushLines();
+
+        var now = System.nanoTime();
+        if (!layers.isEmpty() && (last || now - lastSummaryNanos >= SUMMARY_INTERVAL_NANOS)) {
+            logSummary(now, last);
+        }
+    }
+
+    private void flushLines() {
+        var batch = new ArrayList<String>();
+        lines.drainTo(batch);
+        if (!batch.isEmpty()) {
+            log.info(name + ":\n" + String.join("\n", batch));
+        }
+
+        var lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            log.warn(name + ": " + lost + " lines of output were dropped, the log could not keep up");
+        }
+    }
+
+    private void logSummary(long now, boolean last) {
+        long bytes = 0;
+        long total = 0;
+        int done = 0;
+        for (var layer : layers.values()) {
+            bytes += layer.current;
+            total += Math.max(layer.total, layer.current);
+            done += layer.done ? 1 : 0;
+        }
+
+        //The final summary gives the average, the periodic ones the rate since the previous summary
+        var rate = last
+                ? bytesPerSecond(bytes, now - startNanos)
+                : bytesPerSecond(bytes - lastSummaryBytes, now - lastSummaryNanos);
+        log.info(String.format("%s: %d/%d layers done, %d of %d MiB, %.1f MiB/s", name, done, layers.size(),
+                bytes >> 20, total >> 20, rate / (1 << 20)));
+
+        lastSummaryNanos = now;
+        lastSummaryBytes = bytes;
+    }
+
+    private static double bytesPerSecond(long bytes, long nanos) {
+        return nanos <= 0 ? 0 : Math.max(0, bytes) * 1e9 / nanos;
+    }
+
+    /**
+     * Logs the remaining output and the final summary.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush(true);
+    }
+
+    private static final class Layer {
+        private volatile long current;
+        private volatile long total;
+        private volatile boolean done;
+    }
+}
@@ -0,0 +1,353 @@
+package de.worldiety.autocd.docker;
+
+import com.github.dockerjava.api.model.ResponseItem;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records where the time of the image builds of a run goes: the upload of the build context, every Dockerfile step
+ * and every pushed layer, including whether the registry already had it. The times are taken when the items of the
+ * docker streams arrive, so recording costs the callbacks next to nothing.
+ * <p>
+ * At the end of the run a json report is written and the durations are appended to a history kept between pipelines.
+ * A phase or step that took much longer than the median of the previous runs is reported as regression.
+ */
+public class BuildMetrics {
+    private static final Logger log = LoggerFactory.getLogger(BuildMetrics.class);
+    public static final String DEFAULT_REPORT_FILE = "autocd-metrics.json";
+    public static final String HISTORY_FILE = "metrics-history.json";
+    private static final int MAX_HISTORY = 20;
+    private static final int MIN_HISTORY = 3;
+    //A duration is a regression if it is both this much slower relative to the median and in absolute terms
+    private static final double REGRESSION_FACTOR = 1.5;
+    private static final long REGRESSION_MIN_MILLIS = 10_000;
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private final Map<String, ImageMetrics> images = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    /**
+     * @param image the image with the tag of the build type
+     * @return the metrics of the image, created on first use
+     */
+    @NotNull
+    public ImageMetrics image(@NotNull String image) {
+        return images.computeIfAbsent(image, ImageMetrics::new);
+    }
+
+    /**
+     * Writes the report of this run and appends it to the history. Failures are logged, the metrics are no reason
+     * to fail a deployment.
+     *
+     * @param reportFile  the json report of this run
+     * @param historyFile the durations of previous runs, created if it does not exist
+     * @return the regressions compared to the history
+     */
+    @NotNull
+    public List<String> write(@NotNull Path reportFile, @NotNull Path historyFile) {
+        List<ImageMetrics> snapshot;
+        synchronized (images) {
+            snapshot = new ArrayList<>(images.values());
+        }
+        if (snapshot.isEmpty()) {
+            return List.of();
+        }
+
+        var history = readHistory(historyFile);
+        var run = new HistoryEntry();
+        //A reused image was not built, its durations would drag the medians of the builds down
+        snapshot.stream()
+                .filter(image -> !image.isReused())
+                .forEach(image -> run.durations.put(image.image, image.durations()));
+        var regressions = findRegressions(run, history);
+        regressions.forEach(regression -> log.warn("Build regression: " + regression));
+
+        var report = new Report(snapshot, regressions);
+        try {
+            Files.writeString(reportFile, GSON.toJson(report));
+            log.info("Wrote the build metrics to " + reportFile);
+        } catch (IOException e) {
+            log.warn("Could not write the build metrics to " + reportFile, e);
+        }
+
+        if (run.durations.isEmpty()) {
+            return regressions;
+        }
+        history.add(run);
+        try {
+            if (historyFile.getParent() != null) {
+                Files.createDirectories(historyFile.getParent());
+            }
+            Files.writeString(historyFile, GSON.toJson(history.subList(Math.max(0, history.size() - MAX_HISTORY), history.size())));
+        } catch (IOException e) {
+            log.warn("Could not update the build metrics history " + historyFile, e);
+        }
+        return regressions;
+    }
+
+    @NotNull
+    private static List<HistoryEntry> readHistory(@NotNull Path historyFile) {
+        if (!Files.isRegularFile(historyFile)) {
+            return new ArrayList<>();
+        }
+
+        try {
+            List<HistoryEntry> history = GSON.fromJson(Files.readString(historyFile), new TypeToken<List<HistoryEntry>>() {
+            }.getType());
+            return history == null ? new ArrayList<>() : new ArrayList<>(history);
+        } catch (IOException | JsonParseException e) {
+            log.warn("Ignoring the unreadable build metrics history " + historyFile, e);
+            return new ArrayList<>();
+        }
+    }
+
+    @NotNull
+    private static List<String> findRegressions(@NotNull HistoryEntry run, @NotNull List<HistoryEntry> history) {
+        var regressions = new ArrayList<String>();
+        run.durations.forEach((image, durations) -> durations.forEach((phase, millis) -> {
+            var previous = new ArrayList<Long>();
+            for (var entry : history) {
+                var value = entry.durations.getOrDefault(image, Map.of()).get(phase);
+                //Older histories contain zeros for skipped phases and reused images
+                if (value != null && value > 0) {
+                    previous.add(value);
+                }
+            }
+            if (previous.size() < MIN_HISTORY) {
+                return;
+            }
+
+            Collections.sort(previous);
+            var median = previous.get(previous.size() / 2);
+            if (millis > median * REGRESSION_FACTOR && millis - median > REGRESSION_MIN_MILLIS) {
+                regressions.add(image + " " + phase + " took " + millis + "ms, the median of the last "
+                        + previous.size() + " runs is " + median + "ms");
+            }
+        }));
+        return regressions;
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * The build and pushes of one image. Its methods are called by the docker callbacks, possibly concurrently.
+     */
+    public static class ImageMetrics {
+        //Classic builder: "Step 3/10 : RUN npm install" followed by " ---> Using cache" if it was cached
+        private static final Pattern CLASSIC_STEP = Pattern.compile("^Step \\d+/\\d+ : (.*)$");
+        //BuildKit: "#7 [builder 3/6] RUN npm install", then "#7 CACHED" or "#7 DONE 3.1s"
+        private static final Pattern BUILDKIT_STEP = Pattern.compile("^#(\\d+) \\[([^\\]]*\\d+/\\d+)\\] (.*)$");
+        private static final Pattern BUILDKIT_DONE = Pattern.compile("^#(\\d+) (CACHED|DONE (\\d+(?:\\.\\d+)?)s)\\s*$");
+        private final String image;
+        private boolean reused;
+        private long cachePullMillis;
+        private long contextBytes;
+        private long contextUploadMillis;
+        private long buildMillis;
+        private long pushMillis;
+        private final List<Step> steps = new ArrayList<>();
+        private final Map<String, Layer> layers = new LinkedHashMap<>();
+        private transient String target;
+        private transient Step currentStep;
+        private transient final Map<String, Step> buildKitSteps = new LinkedHashMap<>();
+
+        private ImageMetrics(String image) {
+            this.image = image;
+        }
+
+        synchronized void markReused() {
+            reused = true;
+        }
+
+        private synchronized boolean isReused() {
+            return reused;
+        }
+
+        synchronized void cachePulled(long nanos) {
+            cachePullMillis += toMillis(nanos);
+        }
+
+        synchronized void contextUploaded(long bytes, long nanos) {
+            contextBytes += bytes;
+            contextUploadMillis += toMillis(nanos);
+        }
+
+        /**
+         * @param target the stage that is built, null for the whole Dockerfile
+         */
+        synchronized void buildStarted(String target) {
+            this.target = target;
+            this.currentStep = null;
+            buildKitSteps.clear();
+        }
+
+        synchronized void buildFinished(long nanos) {
+            finishStep();
+            buildMillis += toMillis(nanos);
+        }
+
+        /**
+         * @param line a line of the output of the classic builder or BuildKit
+         */
+        synchronized void onBuildOutput(String line) {
+            if (line == null) {
+                return;
+            }
+            var stripped = line.strip();
+
+            var classic = CLASSIC_STEP.matcher(stripped);
+            if (classic.matches()) {
+                finishStep();
+                currentStep = addStep(classic.group(1));
+                return;
+            }
+            if (currentStep != null && stripped.equals("---> Using cache")) {
+                currentStep.cached = true;
+                return;
+            }
+
+            var buildKitStep = BUILDKIT_STEP.matcher(stripped);
+            if (buildKitStep.matches()) {
+                buildKitSteps.computeIfAbsent(buildKitStep.group(1), it -> addStep(buildKitStep.group(3)));
+                return;
+            }
+            var done = BUILDKIT_DONE.matcher(stripped);
+            if (done.matches() && buildKitSteps.containsKey(done.group(1))) {
+                var step = buildKitSteps.get(done.group(1));
+                step.cached = done.group(3) == null;
+                step.millis = done.group(3) == null ? 0 : Math.round(Double.parseDouble(done.group(3)) * 1000);
+            }
+        }
+
+        @NotNull
+        private Step addStep(String instruction) {
+            var step = new Step(target, instruction, System.nanoTime());
+            steps.add(step);
+            return step;
+        }
+
+        private void finishStep() {
+            if (currentStep != null) {
+                currentStep.millis = toMillis(System.nanoTime() - currentStep.startNanos);
+                currentStep = null;
+            }
+        }
+
+        /**
+         * @param item an item of a push stream
+         */
+        synchronized void onPush(@NotNull ResponseItem item) {
+            if (item.getId() == null || item.getStatus() == null) {
+                return;
+            }
+
+            var now = System.nanoTime();
+            var layer = layers.computeIfAbsent(item.getId(), it -> new Layer(now));
+            var status = item.getStatus();
+            var detail = item.getProgressDetail();
+            if (detail != null && detail.getCurrent() != null && detail.getCurrent() > 0) {
+                layer.bytes = Math.max(layer.bytes, detail.getCurrent());
+                layer.uploaded = true;
+                if (detail.getTotal() != null) {
+                    layer.total = Math.max(layer.total, detail.getTotal());
+                }
+            }
+            if (status.equals("Layer already exists") || status.startsWith("Mounted from")) {
+                //Other tags of the same image find the layers pushed by the first one
+                layer.alreadyPresent = !layer.uploaded;
+                layer.done(now);
+            } else if (status.equals("Pushed")) {
+                layer.bytes = Math.max(layer.bytes, layer.total);
+                layer.uploaded = true;
+                layer.done(now);
+            }
+        }
+
+        synchronized void pushFinished(long nanos) {
+            pushMillis += toMillis(nanos);
+        }
+
+        /**
+         * @return the durations compared between runs by phase or step, without the ones that were skipped or cached
+         */
+        @NotNull
+        private synchronized Map<String, Long> durations() {
+            var durations = new LinkedHashMap<String, Long>();
+            durations.put("cache pull", cachePullMillis);
+            durations.put("context upload", contextUploadMillis);
+            durations.put("build", buildMillis);
+            durations.put("push", pushMillis);
+            for (var step : steps) {
+                var key = (step.target == null ? "" : step.target + " ") + "step " + step.instruction;
+                durations.merge(key, step.millis, Long::sum);
+            }
+            durations.values().removeIf(millis -> millis == 0);
+            return durations;
+        }
+    }
+
+    private static class Step {
+        private final String target;
+        private final String instruction;
+        private transient final long startNanos;
+        private long millis;
+        private boolean cached;
+
+        private Step(String target, String instruction, long startNanos) {
+            this.target = target;
+            this.instruction = instruction;
+            this.startNanos = startNanos;
+        }
+    }
+
+    private static class Layer {
+        private transient final long startNanos;
+        private transient long total;
+        private long bytes;
+        private long millis;
+        private boolean uploaded;
+        private boolean alreadyPresent;
+
+        private Layer(long startNanos) {
+            this.startNanos = startNanos;
+        }
+
+        private void done(long now) {
+            if (millis == 0) {
+                millis = toMillis(now - startNanos);
+            }
+        }
+    }
+
+    private static class Report {
+        private final String timestamp = Instant.now().toString();
+        private final List<ImageMetrics> images;
+        private final List<String> regressions;
+
+        private Report(List<ImageMetrics> images, List<String> regressions) {
+            this.images = images;
+            this.regressions = regressions;
+        }
+    }
+
+    private static class HistoryEntry {
+        private String timestamp = Instant.now().toString();
+        private Map<String, Map<String, Long>> durations = new LinkedHashMap<>();
+    }
+}
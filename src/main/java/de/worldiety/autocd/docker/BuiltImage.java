@@ -0,0 +1,44 @@
+package de.worldiety.autocd.docker;
+
+public class BuiltImage {
+    private final String tag;
+    private final String imageId;
+    private final String digest;
+
+    /**
+     * @param tag     the image with the tag of the build type
+     * @param imageId the id of the image
+     * @param digest  the digest of the pushed manifest, null if it is not known
+     */
+    public BuiltImage(String tag, String imageId, String digest) {
+        this.tag = tag;
+        this.imageId = imageId;
+        this.digest = digest;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public String getImageId() {
+        return imageId;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Unlike the tag the digest always refers to this image, so nodes that pulled it once can start it again
+     * without asking the registry.
+     *
+     * @return the image pinned by its digest, e.g. registry/group/project@sha256:..., or the tag if the digest is
+     * not known
+     */
+    public String getReference() {
+        if (digest == null) {
+            return tag;
+        }
+        return tag.substring(0, tag.lastIndexOf(':')) + "@" + digest;
+    }
+}
@@ -1,22 +1,46 @@
 package de.worldiety.autocd.docker;
 
 import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.command.BuildImageCmd;
+import com.github.dockerjava.api.exception.DockerClientException;
+import com.github.dockerjava.api.exception.DockerException;
 import com.github.dockerjava.api.model.BuildResponseItem;
 import com.github.dockerjava.api.model.PushResponseItem;
 import com.github.dockerjava.core.DefaultDockerClientConfig;
 import com.github.dockerjava.core.DockerClientBuilder;
 import com.github.dockerjava.core.command.BuildImageResultCallback;
+import com.github.dockerjava.core.command.PullImageResultCallback;
 import com.github.dockerjava.core.command.PushImageResultCallback;
 import de.worldiety.autocd.util.Environment;
+import de.worldiety.autocd.util.FileType;
+import de.worldiety.autocd.util.Util;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class Docker {
     private static final Logger log = LoggerFactory.getLogger(Docker.class);
+    public static final String BUILDER_TAG_SUFFIX = "-builder";
+    private static final String BUILDER_STAGE = "builder";
+    private static final Pattern PUSHED_DIGEST_PATTERN = Pattern.compile("digest: (sha256:[0-9a-f]{64})");
+    private static final Pattern BUILDER_STAGE_PATTERN = Pattern.compile("(?im)^\\s*FROM\\s+\\S+\\s+AS\\s+" + BUILDER_STAGE + "\\s*$");
     private DockerClient client;
+    private final RegistryClient registry;
+    private final int compressionLevel;
+    private final boolean useCacheFrom;
+    private final BuildKitBuilder buildKit;
+    private final BuildMetrics metrics = new BuildMetrics();
 
     public Docker() {
         var reg = System.getenv(Environment.CI_REGISTRY.toString());
@@ -34,9 +58,36 @@ public class Docker {
             config = DefaultDockerClientConfig.createDefaultConfigBuilder().build();
         }
         this.client = DockerClientBuilder.getInstance(config).build();
+        this.registry = RegistryClient.fromEnvironment().orElse(null);
+        this.compressionLevel = Util.getEnvInt(Environment.AUTOCD_CONTEXT_COMPRESSION, BuildContext.DEFAULT_COMPRESSION);
+        this.useCacheFrom = Util.getEnvBoolean(Environment.AUTOCD_CACHE_FROM, true);
+        this.buildKit = Util.getEnvBoolean(Environment.AUTOCD_BUILDKIT, false) && BuildKitBuilder.isAvailable()
+                ? new BuildKitBuilder(compressionLevel)
+                : null;
     }
 
-    public String buildAndPushImageFromFile(File configFile, String buildType) {
+    /**
+     * @return the timings of all builds and pushes of this client
+     */
+    public BuildMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * BuildKit is used if AUTOCD_BUILDKIT is true and the docker CLI and daemon support it, otherwise the classic
+     * builder.
+     *
+     * @return true if images are built with BuildKit, so Dockerfiles may mount caches
+     */
+    public boolean isBuildKitEnabled() {
+        return buildKit != null;
+    }
+
+    /**
+     * @return the repository the images of this project are pushed to, without tag
+     */
+    @NotNull
+    public static String getRepository() {
         var reg = System.getenv(Environment.CI_REGISTRY.toString());
         var projectName = System.getenv(Environment.CI_PROJECT_NAME.toString());
         var nameSpace = System.getenv(Environment.CI_PROJECT_NAMESPACE.toString());
@@ -45,46 +96,342 @@ public class Docker {
         projectName = projectName == null ? "default" : projectName;
         nameSpace = nameSpace == null ? "default" : nameSpace;
 
-        var tag = reg + "/" + nameSpace + "/" + projectName + ":" + buildType;
+        return reg + "/" + nameSpace + "/" + projectName;
+    }
+
+    /**
+     * Builds and pushes the image unless an image was pushed for the same Dockerfile and build context before. That
+     * image is found by the tag ctx-digest, see BuildContext, and tagged again without building it.
+     *
+     * @param configFile     the Dockerfile
+     * @param buildType      the build type, used as tag
+     * @param additionalTags further tags the image is pushed with
+     * @param fileType       the type of the project, decides which paths are left out of the build context
+     * @return the image tagged with the build type
+     */
+    public BuiltImage buildAndPushImageFromFile(File configFile, String buildType, Collection<String> additionalTags,
+                                                FileType fileType) {
+        return buildAndPushImageFromFile(configFile, getRepository(), buildType, additionalTags, fileType);
+    }
+
+    /**
+     * Builds and pushes the image to the given repository, which lets a project push several images. Like the other
+     * overloads an image pushed before for the same Dockerfile and build context is tagged instead.
+     *
+     * @param configFile     the Dockerfile, its directory is the build context
+     * @param repository     the repository the image is pushed to, without tag
+     * @param buildType      the build type, used as tag
+     * @param additionalTags further tags the image is pushed with
+     * @param fileType       the type of the project, decides which paths are left out of the build context
+     * @return the image tagged with the build type
+     */
+    public BuiltImage buildAndPushImageFromFile(File configFile, String repository, String buildType,
+                                                Collection<String> additionalTags, FileType fileType) {
+        var registry = registryFor(repository);
+        var tag = repository + ":" + buildType;
+        var imageMetrics = metrics.image(tag);
+        var tagNames = new LinkedHashSet<String>();
+        tagNames.add(buildType);
+        tagNames.addAll(additionalTags);
+
+        var staticDir = new File(configFile.getAbsoluteFile().getParentFile(), "static/");
+        if (!staticDir.exists()) {
+            if (!staticDir.mkdir()) {
+                log.error("No write permissions");
+            }
+        }
+
+        var context = listContext(configFile, fileType);
+        var contextTag = registry == null ? null : getContextTag(context);
+        if (contextTag != null) {
+            var reused = retag(registry, contextTag, tagNames);
+            if (reused.isPresent()) {
+                log.info("The build context did not change, tagged " + repository + ":" + contextTag + " as " + tagNames);
+                imageMetrics.markReused();
+                return new BuiltImage(tag, reused.get().getConfigDigest(), reused.get().getDigest());
+            }
+            tagNames.add(contextTag);
+        }
 
         log.info("creating image with tag " + tag);
 
-        BuildImageResultCallback callback = new BuildImageResultCallback() {
+        var pullStart = System.nanoTime();
+        var cacheFrom = useCacheFrom ? pullCacheImages(repository, buildType) : Set.<String>of();
+        imageMetrics.cachePulled(System.nanoTime() - pullStart);
+        if (useCacheFrom && hasBuilderStage(configFile)) {
+            //The final image does not contain the layers of the builder stage, they are cached in their own tag
+            var builderTag = repository + ":" + buildType + BUILDER_TAG_SUFFIX;
+            log.info("creating builder stage with tag " + builderTag);
+            buildImage(configFile, context, Set.of(builderTag), BUILDER_STAGE, cacheFrom, imageMetrics);
+            push(builderTag, imageMetrics);
+        }
+
+        var tags = tagNames.stream().map(it -> repository + ":" + it).collect(Collectors.toCollection(LinkedHashSet::new));
+        var imageId = buildImage(configFile, context, tags, null, cacheFrom, imageMetrics);
+
+        //All tags refer to the same manifest, the digest of the first push pins the image
+        String digest = null;
+        for (var imageTag : tags) {
+            var pushed = push(imageTag, imageMetrics);
+            digest = digest == null ? pushed : digest;
+        }
+        return new BuiltImage(tag, imageId, digest);
+    }
+
+    /**
+     * Pulls the last image of the build type and its builder stage, so their layers can be reused by the build.
+     * Runners start with an empty docker cache, without this every build downloads all dependencies again.
+     *
+     * @return the images that could be pulled
+     */
+    @NotNull
+    private Set<String> pullCacheImages(String repository, String buildType) {
+        var pulled = new LinkedHashSet<String>();
+        for (var tagName : List.of(buildType + BUILDER_TAG_SUFFIX, buildType)) {
+            try {
+                client.pullImageCmd(repository).withTag(tagName).exec(new PullImageResultCallback()).awaitCompletion();
+                pulled.add(repository + ":" + tagName);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while pulling the cache images");
+                break;
+            } catch (DockerException | DockerClientException e) {
+                log.info("No cache image " + repository + ":" + tagName + ", " + e.getMessage());
+            }
+        }
+        return pulled;
+    }
+
+    /**
+     * @param configFile the Dockerfile
+     * @return true if the Dockerfile has a stage named builder, like the generated ones
+     */
+    private boolean hasBuilderStage(@NotNull File configFile) {
+        try {
+            return BUILDER_STAGE_PATTERN.matcher(Files.readString(configFile.toPath())).find();
+        } catch (IOException e) {
+            log.warn("Could not read " + configFile + ", not caching the builder stage", e);
+            return false;
+        }
+    }
+
+    /**
+     * @param configFile the Dockerfile
+     * @param context    the build context, null to let docker-java archive the directory of the Dockerfile
+     * @param tags       the tags of the image
+     * @param target     the stage to build, null for the whole Dockerfile
+     * @param cacheFrom  the images whose layers may be reused
+     * @param metrics    the metrics of the image
+     * @return the id of the image
+     */
+    private String buildImage(File configFile, BuildContext context, Set<String> tags, String target, Set<String> cacheFrom,
+                              BuildMetrics.ImageMetrics metrics) {
+        var start = System.nanoTime();
+        metrics.buildStarted(target);
+        try (var sink = new BuildLogSink("build " + tags.iterator().next())) {
+            if (buildKit != null) {
+                return buildKit.build(configFile, context, tags, target, cacheFrom, sink, metrics);
+            }
+            if (context == null) {
+                return configure(client.buildImageCmd(configFile), tags, target, cacheFrom)
+                        .exec(newBuildCallback(sink, metrics))
+                        .awaitImageId();
+            }
+
+            //The context is streamed to the daemon while it is archived
+            try (var upload = context.stream(compressionLevel)) {
+                var imageId = configure(client.buildImageCmd(upload), tags, target, cacheFrom)
+                        .withDockerfilePath(context.getDockerfilePath())
+                        .exec(newBuildCallback(sink, metrics))
+                        .awaitImageId();
+
+                log.info(String.format("Sent a build context of %d entries and %d KiB as %d KiB in %d ms",
+                        context.getEntryCount(), context.getSize() / 1024, upload.getSentBytes() / 1024,
+                        upload.getUploadNanos() / 1_000_000));
+                metrics.contextUploaded(upload.getSentBytes(), upload.getUploadNanos());
+                return imageId;
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not send the build context", e);
+            }
+        } finally {
+            metrics.buildFinished(System.nanoTime() - start);
+        }
+    }
+
+    @NotNull
+    private static BuildImageCmd configure(@NotNull BuildImageCmd cmd, Set<String> tags, String target, Set<String> cacheFrom) {
+        cmd.withTags(tags);
+        if (target != null) {
+            cmd.withTarget(target);
+        }
+        if (!cacheFrom.isEmpty()) {
+            cmd.withCacheFrom(cacheFrom);
+        }
+        return cmd;
+    }
+
+    @NotNull
+    private static BuildImageResultCallback newBuildCallback(@NotNull BuildLogSink sink,
+                                                             @NotNull BuildMetrics.ImageMetrics metrics) {
+        return new BuildImageResultCallback() {
             @Override
             public void onNext(@NotNull BuildResponseItem item) {
-                if (item.getStream() != null && !item.getStream().equals(".")) {
-                    log.info(item.getStream());
-                }
+                metrics.onBuildOutput(item.getStream());
+                sink.item(item);
                 super.onNext(item);
             }
         };
+    }
 
-        var staticDir = new File("static/");
-        if (!staticDir.exists()) {
-            if (!staticDir.mkdir()) {
-                log.error("No write permissions");
+    /**
+     * @param configFile the Dockerfile
+     * @param fileType   the type of the project
+     * @return the build context, null if it could not be listed and docker-java should archive the directory
+     */
+    private BuildContext listContext(File configFile, FileType fileType) {
+        try {
+            return BuildContext.of(configFile, fileType);
+        } catch (IOException e) {
+            log.warn("Could not list the build context, sending the whole directory", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param context the build context
+     * @return the tag marking images built from this Dockerfile and context, null if the context could not be read
+     */
+    private String getContextTag(BuildContext context) {
+        if (context == null) {
+            return null;
+        }
+
+        try {
+            var start = System.nanoTime();
+            var digest = context.digest();
+            log.info("Build context digest " + digest + " computed in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return "ctx-" + digest;
+        } catch (IOException e) {
+            log.warn("Could not compute the digest of the build context, building without checking the registry", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param repository a repository below the registry of the project
+     * @return the client for the repository, null if there is no registry
+     */
+    private RegistryClient registryFor(@NotNull String repository) {
+        if (registry == null || repository.equals(getRepository())) {
+            return registry;
+        }
+
+        //The registry client only exists if CI_REGISTRY is set
+        var reg = System.getenv(Environment.CI_REGISTRY.toString());
+        if (!repository.startsWith(reg + "/")) {
+            return null;
+        }
+        return registry.forRepository(repository.substring(reg.length() + 1));
+    }
+
+    /**
+     * @param registry  the client for the repository of the image
+     * @param sourceTag the tag of a pushed image
+     * @param tagNames  the tags to set
+     * @return the manifest of the image, empty if there is no image with the source tag or it could not be tagged
+     */
+    private Optional<RegistryClient.Manifest> retag(@NotNull RegistryClient registry, String sourceTag,
+                                                    Collection<String> tagNames) {
+        try {
+            var manifest = registry.getManifest(sourceTag);
+            if (manifest.isEmpty()) {
+                return Optional.empty();
             }
+
+            for (var tagName : tagNames) {
+                registry.putManifest(tagName, manifest.get());
+            }
+            return manifest;
+        } catch (IOException e) {
+            log.warn("Could not reuse " + sourceTag + " from the registry", e);
+            return Optional.empty();
         }
+    }
 
-        client.buildImageCmd(configFile)
-                .withTags(Set.of(tag))
-                .exec(callback)
-                .awaitImageId();
+    /**
+     * Points the tag of the build type to an image that was pushed before. With access to the registry API only the
+     * manifest is uploaded again, otherwise the image is pulled, tagged and pushed.
+     *
+     * @param sourceTag the tag of the pushed image
+     * @param buildType the build type, used as tag
+     * @return the image tagged with the build type, empty if the image could not be found
+     */
+    public Optional<BuiltImage> promote(String sourceTag, String buildType) {
+        var repository = getRepository();
+        var tag = repository + ":" + buildType;
+
+        if (registry != null) {
+            return retag(registry, sourceTag, List.of(buildType))
+                    .map(manifest -> new BuiltImage(tag, manifest.getConfigDigest(), manifest.getDigest()));
+        }
 
         try {
+            client.pullImageCmd(repository).withTag(sourceTag).exec(new PullImageResultCallback()).awaitCompletion();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("pulling image failed", e);
+            return Optional.empty();
+        } catch (DockerException e) {
+            log.warn("Could not pull " + repository + ":" + sourceTag, e);
+            return Optional.empty();
+        }
+
+        var imageId = client.inspectImageCmd(repository + ":" + sourceTag).exec().getId();
+        client.tagImageCmd(imageId, repository, buildType).exec();
+        var digest = push(tag, metrics.image(tag));
+        return Optional.of(new BuiltImage(tag, imageId, digest));
+    }
+
+    /**
+     * @param tag     the image to push
+     * @param metrics the metrics of the image
+     * @return the digest of the pushed manifest, null if the daemon did not report it
+     */
+    private String push(String tag, BuildMetrics.ImageMetrics metrics) {
+        var start = System.nanoTime();
+        var digest = new AtomicReference<String>();
+        try (var sink = new BuildLogSink("push " + tag)) {
             client.pushImageCmd(tag).exec(new PushImageResultCallback() {
                 @Override
                 public void onNext(PushResponseItem item) {
-                    if (item.getStream() != null && !item.getStream().equals(".")) {
-                        log.info(item.getStream());
-                    }
+                    metrics.onPush(item);
+                    sink.item(item);
+                    readDigest(item).ifPresent(digest::set);
                     super.onNext(item);
                 }
             }).awaitCompletion();
         } catch (InterruptedException e) {
             log.error("pushing image failed", e);
+        } finally {
+            metrics.pushFinished(System.nanoTime() - start);
+        }
+        return digest.get();
+    }
+
+    /**
+     * The daemon ends a push with an item carrying the digest as aux and as status, e.g. "dev: digest: sha256:...
+     * size: 1234".
+     */
+    @NotNull
+    private static Optional<String> readDigest(@NotNull PushResponseItem item) {
+        if (item.getAux() != null && item.getAux().getDigest() != null) {
+            return Optional.of(item.getAux().getDigest());
+        }
+        if (item.getStatus() == null) {
+            return Optional.empty();
         }
 
-        return tag;
+        var matcher = PUSHED_DIGEST_PATTERN.matcher(item.getStatus());
+        return matcher.find() ? Optional.of(matcher.group(1)) : Optional.empty();
     }
 }
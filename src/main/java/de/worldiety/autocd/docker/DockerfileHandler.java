@@ -7,21 +7,57 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
-import org.apache.commons.io.FilenameUtils;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import org.apache.commons.io.IOUtils;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
 public class DockerfileHandler {
+    private static final Pattern RUN_INSTRUCTION = Pattern.compile("(?m)^RUN ");
+    private final Path root;
     private List<File> fileList = new ArrayList<>();
+    private FileType fileType;
 
     public DockerfileHandler(String path) {
-        prepFileList(path);
+        this(path, ProjectScanner.DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param path        the project root
+     * @param parallelism the number of threads scanning the project, 1 scans it on the calling thread
+     */
+    public DockerfileHandler(String path, int parallelism) {
+        this(path, parallelism, false);
+    }
+
+    /**
+     * @param path        the project root
+     * @param parallelism the number of threads scanning the project, 1 scans it on the calling thread
+     * @param useGitIndex whether to take the tracked files from the git index instead of walking the project
+     */
+    public DockerfileHandler(String path, int parallelism, boolean useGitIndex) {
+        this.root = Path.of(path);
+        prepFileList(parallelism, useGitIndex);
+    }
+
+    /**
+     * Does not scan the project, e.g. because its type is known from the BuildCache.
+     *
+     * @param path     the project root
+     * @param fileType the type of the project
+     */
+    public DockerfileHandler(String path, FileType fileType) {
+        this.root = Path.of(path);
+        this.fileType = fileType;
     }
 
     /**
@@ -40,88 +76,82 @@ public class DockerfileHandler {
         return Objects.requireNonNull(classLoader.getResourceAsStream(fileName));
     }
 
+    /**
+     * @return the files scanned until the project type was decided
+     */
     public List<File> getFileList() {
         return fileList;
     }
 
     public void setFileList(List<File> fileList) {
         this.fileList = fileList;
+        this.fileType = new ProjectTypeDetector(root).classify(fileList.stream().map(File::toPath).collect(Collectors.toList()));
     }
 
     /**
-     * Will list all files within a given directory. If there is another directory found, it will step into that
-     * directory and will list those files as well.
+     * Lists the files within the project root and its subdirectories. The listing stops early only at a file of the
+     * type declared first in FileType, any other type could still be outranked by a file listed later.
+     * Dependencies, build output and ignored files are not listed, see ProjectScanner.
      *
-     * @param directoryPath
+     * @param parallelism
+     * @param useGitIndex
      */
-    private void prepFileList(String directoryPath) {
-        var directory = new File(directoryPath);
-
-        var fList = directory.listFiles();
-
-        if (fList == null) {
-            throw new IllegalArgumentException(directoryPath + " is not a directory!");
-        }
-
-        for (var file : fList) {
-            if (file.isFile()) {
-                fileList.add(file);
-            } else if (file.isDirectory()) {
-                prepFileList(file.getAbsolutePath());
-            }
-        }
+    private void prepFileList(int parallelism, boolean useGitIndex) {
+        var detector = new ProjectTypeDetector(root);
+        fileList = new ProjectScanner(root, parallelism, useGitIndex)
+                .scan(detector::accept)
+                .stream()
+                .map(Path::toFile)
+                .collect(Collectors.toList());
+        fileType = detector.getFileType();
     }
 
     /**
-     * returns the file type based on its extension.
+     * The type is detected once while scanning the project.
      *
-     * @param listFile
-     * @return String
+     * @return the type of the project, OTHER if it could not be detected
      */
-    private String getFileExt(@NotNull File listFile) {
-        return FilenameUtils.getExtension(listFile.getAbsolutePath());
+    public FileType getFileType() {
+        return fileType;
     }
 
     /**
-     * Mps the found file extension to the fitting file type
+     * Copies the manifest files of the project type that exist in the project root and resolves the dependencies
+     * from them. Files excluded from the build context are left out, COPY would fail for them.
      *
-     * @param ext
-     * @return FileType
+     * @param ftype the type of the project
+     * @return the steps to insert before the sources are copied, empty if the project has no manifest files
      */
-    @Contract(pure = true)
-    private FileType mapFileTypeToFileType(@NotNull String ext) {
-        //noinspection IfCanBeSwitch
-        if ("go".equals(ext)) {
-            return FileType.GO;
-        } else if ("java".equals(ext)) {
-            return FileType.JAVA;
-        } else if ("vue".equals(ext)) {
-            var isNuxt = new File("nuxt.config.js").exists();
-            return isNuxt ? FileType.NUXT : FileType.VUE;
-        } else if ("ts".equals(ext) || "js".equals(ext)) {
-            var packageJson = new File("package.json");
-
-            try {
-                var packStr = Files.readString(packageJson.toPath());
-                if (packStr.contains("@kloudsoftware/eisen")) {
-                    return FileType.EISEN;
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+    @NotNull
+    private String getDependencyPart(@NotNull FileType ftype) {
+        if (ftype.getDependencyStep() == null) {
+            return "";
+        }
+
+        var dockerignore = IgnoreRules.dockerignore(root, ftype.getDefaultDockerignore());
+        var files = new ArrayList<String>();
+        var part = new StringBuilder();
+        for (var name : ftype.getManifestFiles()) {
+            var path = root.resolve(name);
+            var directory = Files.isDirectory(path);
+            if (!Files.exists(path) || dockerignore.isIgnored(path, directory)) {
+                continue;
             }
 
-            return FileType.OTHER;
+            if (directory) {
+                //COPY would copy the content of the directory, not the directory itself
+                part.append("COPY ").append(name).append("/ ").append(name).append("/\n");
+            } else {
+                files.add(name);
+            }
         }
-        return FileType.OTHER;
-    }
 
-
-    public FileType getFileType() {
-        return fileList.stream()
-                .map(this::getFileExt)
-                .map(this::mapFileTypeToFileType)
-                .filter(it -> it.getDockerConfig() != null)
-                .findFirst().orElse(FileType.OTHER);
+        if (files.isEmpty()) {
+            return "";
+        }
+        part.append("COPY ").append(String.join(" ", files)).append(" ./\n");
+        part.append(ftype.getDependencyStep());
+        return part.toString();
     }
 
     /**
@@ -132,33 +162,41 @@ public class DockerfileHandler {
      * @return File
      */
     public Optional<File> findDockerConfig() {
-        var opt = fileList.stream()
-                .map(this::getFileExt)
-                .map(this::mapFileTypeToFileType)
-                .filter(it -> it.getDockerConfig() != null)
-                .findFirst();
+        return findDockerConfig(false);
+    }
 
-        return opt.map(ftype -> {
+    /**
+     * Same as findDockerConfig(), with cacheMounts the RUN steps mount the dependency caches of the project type,
+     * see FileType.getCacheMounts(). Such a Dockerfile can only be built with BuildKit.
+     *
+     * @param cacheMounts whether to mount the dependency caches
+     * @return File
+     */
+    public Optional<File> findDockerConfig(boolean cacheMounts) {
+        return Optional.of(fileType).filter(it -> it.getDockerConfig() != null).map(ftype -> {
             var customBuildsh = new File("build.sh");
             var nFile = new File("Dockerfile");
+            var mounts = cacheMounts ? ftype.getCacheMounts() : List.<String>of();
 
-            try {
-                var fout = new FileOutputStream(nFile);
+            try (var fout = new FileOutputStream(nFile)) {
+                var bfout = new BufferedWriter(new OutputStreamWriter(fout, StandardCharsets.UTF_8));
+                if (cacheMounts) {
+                    bfout.write("# syntax=docker/dockerfile:1\n");
+                }
+                bfout.write(readResource(ftype.getDockerConfig()));
 
-                IOUtils.copy(getFileFromResources(ftype.getDockerConfig()), fout);
-                fout.flush();
+                //Dependencies get their own layer, which source changes do not invalidate
+                bfout.write(withCacheMounts(getDependencyPart(ftype), mounts));
+                bfout.write("COPY . .\n");
 
                 if (customBuildsh.exists()) {
-                    IOUtils.copy(getFileFromResources("run-build-part"), fout);
+                    bfout.write(withCacheMounts(readResource("run-build-part"), mounts));
                 } else {
-                    var bfout = new BufferedWriter(new OutputStreamWriter(fout));
-                    bfout.write(ftype.getDefaultBuild());
-                    bfout.flush();
+                    bfout.write(withCacheMounts(ftype.getDefaultBuild(), mounts));
                 }
 
-                IOUtils.copy(getFileFromResources(ftype.getFinalDocker()), fout);
-                fout.flush();
-
+                bfout.write(readResource(ftype.getFinalDocker()));
+                bfout.flush();
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -166,4 +204,26 @@ public class DockerfileHandler {
             return nFile.getAbsoluteFile();
         });
     }
+
+    @NotNull
+    private String readResource(String fileName) throws IOException {
+        try (var in = getFileFromResources(fileName)) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @param steps   Dockerfile instructions
+     * @param targets the directories to mount a cache at
+     * @return the steps with the caches mounted into every RUN instruction
+     */
+    @NotNull
+    private static String withCacheMounts(@NotNull String steps, @NotNull List<String> targets) {
+        if (targets.isEmpty()) {
+            return steps;
+        }
+
+        var mounts = targets.stream().map(it -> "--mount=type=cache,target=" + it + " ").collect(Collectors.joining());
+        return RUN_INSTRUCTION.matcher(steps).replaceAll("RUN " + Matcher.quoteReplacement(mounts));
+    }
 }
@@ -0,0 +1,254 @@
+package de.worldiety.autocd.docker;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Lists the tracked files of a git checkout by reading its index file, versions 2 to 4, without running git. The
+ * index is memory-mapped and only the paths are decoded.
+ * <p>
+ * Split indexes and sparse directory entries only contain part of the tracked files, they are reported as
+ * unsupported so the caller can fall back to walking the directory.
+ */
+final class GitIndexReader {
+    private static final int SIGNATURE = 0x44495243; //DIRC
+    private static final int LINK_EXTENSION = 0x6c696e6b; //link
+    private static final int HASH_LENGTH = 20;
+    private static final int EXTENDED_FLAG = 0x4000;
+    private static final int SKIP_WORKTREE_FLAG = 0x4000;
+    private static final int NAME_MASK = 0xfff;
+    private static final int TYPE_MASK = 0xf000;
+    private static final int TYPE_DIRECTORY = 0x4000;
+    private static final int TYPE_GITLINK = 0xe000;
+
+    private GitIndexReader() {
+    }
+
+    /**
+     * @param root the root of a checkout
+     * @return the index of the checkout, null if root does not contain a .git directory or file
+     */
+    static Path findIndex(@NotNull Path root) throws IOException {
+        var git = root.resolve(".git");
+        if (Files.isDirectory(git)) {
+            return git.resolve("index");
+        }
+        if (!Files.isRegularFile(git)) {
+            return null;
+        }
+
+        //Worktrees and submodules have a file pointing to the git directory
+        var content = Files.readString(git).strip();
+        if (!content.startsWith("gitdir:")) {
+            throw new IOException(git + " does not point to a git directory");
+        }
+        return root.resolve(content.substring("gitdir:".length()).strip()).resolve("index");
+    }
+
+    /**
+     * @param index the index file
+     * @return the paths of all checked out files, relative to the root of the checkout and separated by /
+     * @throws IOException if the index can not be read, is corrupt or uses an unsupported feature
+     */
+    @NotNull
+    static List<String> read(@NotNull Path index) throws IOException {
+        return readEntries(index).stream().map(Entry::getPath).collect(Collectors.toList());
+    }
+
+    /**
+     * @param index the index file
+     * @return the entries of all checked out files, sorted by path
+     * @throws IOException if the index can not be read, is corrupt or uses an unsupported feature
+     */
+    @NotNull
+    static List<Entry> readEntries(@NotNull Path index) throws IOException {
+        ByteBuffer buffer;
+        try (var channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            return read(buffer, index);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException(index + " is corrupt", e);
+        }
+    }
+
+    @NotNull
+    private static List<Entry> read(@NotNull ByteBuffer buffer, Path index) throws IOException {
+        if (buffer.getInt() != SIGNATURE) {
+            throw new IOException(index + " is not a git index");
+        }
+
+        var version = buffer.getInt();
+        if (version < 2 || version > 4) {
+            throw new IOException(index + " has the unsupported version " + version);
+        }
+
+        var count = buffer.getInt();
+        //Every entry takes at least 62 bytes, a corrupt count must not allocate more
+        var entries = new ArrayList<Entry>(Math.max(0, Math.min(count, buffer.remaining() / 62)));
+        var path = new byte[256];
+        var pathLength = 0;
+
+        for (int i = 0; i < count; i++) {
+            //ctime, mtime, dev, ino, mode, uid, gid and size, followed by the object id and the flags
+            var start = buffer.position();
+            buffer.position(start + 8);
+            var modifiedSeconds = buffer.getInt() & 0xffffffffL;
+            var modifiedNanos = buffer.getInt();
+            buffer.position(start + 24);
+            var mode = buffer.getInt();
+            buffer.position(start + 36);
+            var size = buffer.getInt() & 0xffffffffL;
+            var objectId = new byte[HASH_LENGTH];
+            buffer.get(objectId);
+            var flags = buffer.getShort() & 0xffff;
+            var extendedFlags = 0;
+            if (version >= 3 && (flags & EXTENDED_FLAG) != 0) {
+                extendedFlags = buffer.getShort() & 0xffff;
+            }
+
+            if (version == 4) {
+                var strip = readOffset(buffer);
+                if (strip > pathLength) {
+                    throw new IOException(index + " is corrupt, entry " + i + " strips more than the previous path");
+                }
+                pathLength -= (int) strip;
+            } else {
+                pathLength = 0;
+            }
+
+            //The length in the flags is capped, so the path is read up to its terminating NUL
+            var nameStart = buffer.position();
+            var nameEnd = nameStart;
+            while (buffer.get(nameEnd) != 0) {
+                nameEnd++;
+            }
+            var suffixLength = nameEnd - nameStart;
+            if (version < 4 && (flags & NAME_MASK) != NAME_MASK && (flags & NAME_MASK) != suffixLength) {
+                throw new IOException(index + " is corrupt, the name length of entry " + i + " does not match");
+            }
+            if (pathLength + suffixLength > path.length) {
+                path = Arrays.copyOf(path, Math.max(path.length * 2, pathLength + suffixLength));
+            }
+            buffer.get(path, pathLength, suffixLength);
+            pathLength += suffixLength;
+
+            if (version == 4) {
+                buffer.position(nameEnd + 1);
+            } else {
+                //Entries are padded with 1 to 8 NULs to a multiple of 8 bytes
+                var entryLength = nameEnd - start;
+                buffer.position(start + (entryLength + 8) / 8 * 8);
+            }
+
+            var type = mode & TYPE_MASK;
+            if (type == TYPE_DIRECTORY) {
+                throw new IOException(index + " is a sparse index");
+            }
+            if (type == TYPE_GITLINK || (extendedFlags & SKIP_WORKTREE_FLAG) != 0) {
+                //Submodules and files outside a sparse checkout
+                continue;
+            }
+
+            var name = new String(path, 0, pathLength, StandardCharsets.UTF_8);
+            //Conflicts have an entry per stage, sorted by stage
+            if (entries.isEmpty() || !entries.get(entries.size() - 1).getPath().equals(name)) {
+                entries.add(new Entry(name, mode, objectId, size, modifiedSeconds, modifiedNanos));
+            }
+        }
+
+        checkExtensions(buffer, index);
+        return entries;
+    }
+
+    private static void checkExtensions(@NotNull ByteBuffer buffer, Path index) throws IOException {
+        while (buffer.remaining() > HASH_LENGTH) {
+            var signature = buffer.getInt();
+            var size = buffer.getInt();
+            if (signature == LINK_EXTENSION) {
+                throw new IOException(index + " is a split index");
+            }
+            buffer.position(buffer.position() + size);
+        }
+    }
+
+    /**
+     * A tracked file together with the stat data git recorded when it was last checked out or added.
+     */
+    static final class Entry {
+        private final String path;
+        private final int mode;
+        private final byte[] objectId;
+        private final long size;
+        private final long modifiedSeconds;
+        private final int modifiedNanos;
+
+        private Entry(String path, int mode, byte[] objectId, long size, long modifiedSeconds, int modifiedNanos) {
+            this.path = path;
+            this.mode = mode;
+            this.objectId = objectId;
+            this.size = size;
+            this.modifiedSeconds = modifiedSeconds;
+            this.modifiedNanos = modifiedNanos;
+        }
+
+        /**
+         * @return the path relative to the root of the checkout, separated by /
+         */
+        String getPath() {
+            return path;
+        }
+
+        int getMode() {
+            return mode;
+        }
+
+        /**
+         * @return the id of the blob with the content of the file
+         */
+        byte[] getObjectId() {
+            return objectId.clone();
+        }
+
+        /**
+         * Git only keeps the lower 32 bits of the size and the modification time, so a match means the file is very
+         * likely unchanged and a mismatch that it changed or was touched.
+         *
+         * @param attributes the attributes of the file in the working tree, not following links
+         * @return true if the file has the size and modification time recorded in the index
+         */
+        boolean matches(@NotNull BasicFileAttributes attributes) {
+            var modified = attributes.lastModifiedTime().toInstant();
+            return (attributes.size() & 0xffffffffL) == size
+                    && (modified.getEpochSecond() & 0xffffffffL) == modifiedSeconds
+                    && (modifiedNanos == 0 || modified.getNano() == modifiedNanos);
+        }
+    }
+
+    /**
+     * Reads the offset encoding git uses for the prefix length in version 4.
+     */
+    private static long readOffset(@NotNull ByteBuffer buffer) {
+        var c = buffer.get() & 0xff;
+        long value = c & 0x7f;
+        while ((c & 0x80) != 0) {
+            c = buffer.get() & 0xff;
+            value = ((value + 1) << 7) | (c & 0x7f);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,200 @@
+package de.worldiety.autocd.docker;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The patterns of a .gitignore or .dockerignore file together with the rules of the parent directories. Like in git,
+ * the last matching pattern of the deepest file wins and a leading ! includes a path again.
+ * <p>
+ * Patterns are translated to globs, so character classes and escapes behave like in java.nio globs rather than
+ * fnmatch. A pattern without a slash matches the name at any depth, all others are relative to the directory of the
+ * file. In a .dockerignore every pattern is relative to the root.
+ */
+final class IgnoreRules {
+    private static final Logger log = LoggerFactory.getLogger(IgnoreRules.class);
+    static final IgnoreRules EMPTY = new IgnoreRules(null, null, List.of());
+    private final IgnoreRules parent;
+    private final Path base;
+    private final List<Rule> rules;
+
+    private IgnoreRules(IgnoreRules parent, Path base, List<Rule> rules) {
+        this.parent = parent;
+        this.base = base;
+        this.rules = rules;
+    }
+
+    /**
+     * @param root the project root
+     * @return the rules of root/.dockerignore, EMPTY if there is none
+     */
+    @NotNull
+    static IgnoreRules dockerignore(@NotNull Path root) {
+        return EMPTY.read(root, ".dockerignore", true);
+    }
+
+    /**
+     * @param root     the project root
+     * @param defaults patterns in .dockerignore syntax applied before the ones of root/.dockerignore, which can
+     *                 include their paths again
+     * @return the combined rules
+     */
+    @NotNull
+    static IgnoreRules dockerignore(@NotNull Path root, @NotNull List<String> defaults) {
+        var rules = dockerignore(root);
+        var combined = new ArrayList<Rule>();
+        for (var pattern : defaults) {
+            combined.add(Rule.parse(pattern, true));
+        }
+        combined.addAll(rules.rules);
+        return combined.isEmpty() ? EMPTY : new IgnoreRules(null, root, List.copyOf(combined));
+    }
+
+    /**
+     * @param directory a directory below the directory of these rules
+     * @return these rules extended by directory/.gitignore, or these rules if there is none
+     */
+    @NotNull
+    IgnoreRules withGitignore(@NotNull Path directory) {
+        return read(directory, ".gitignore", false);
+    }
+
+    /**
+     * @param path      the path to check, below the directories of these rules
+     * @param directory whether path is a directory
+     * @return true if the path is excluded
+     */
+    boolean isIgnored(@NotNull Path path, boolean directory) {
+        for (var current = this; current != null; current = current.parent) {
+            if (current.rules.isEmpty()) {
+                continue;
+            }
+
+            var relative = current.base.relativize(path);
+            for (int i = current.rules.size() - 1; i >= 0; i--) {
+                var rule = current.rules.get(i);
+                if (rule.matches(relative, directory)) {
+                    return !rule.negated;
+                }
+            }
+        }
+        return false;
+    }
+
+    @NotNull
+    private IgnoreRules read(@NotNull Path directory, String fileName, boolean anchored) {
+        var file = directory.resolve(fileName);
+        if (!Files.isRegularFile(file)) {
+            return this;
+        }
+
+        var parsed = new ArrayList<Rule>();
+        try {
+            for (var line : Files.readAllLines(file)) {
+                var rule = Rule.parse(line, anchored);
+                if (rule != null) {
+                    parsed.add(rule);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not read " + file + ", its patterns are not applied", e);
+            return this;
+        }
+
+        return parsed.isEmpty() ? this : new IgnoreRules(this, directory, List.copyOf(parsed));
+    }
+
+    private static final class Rule {
+        private final boolean negated;
+        private final boolean directoryOnly;
+        private final boolean anchored;
+        private final List<PathMatcher> matchers;
+
+        private Rule(boolean negated, boolean directoryOnly, boolean anchored, List<PathMatcher> matchers) {
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+            this.anchored = anchored;
+            this.matchers = matchers;
+        }
+
+        @Contract("null, _ -> null")
+        private static Rule parse(String line, boolean anchored) {
+            if (line == null) {
+                return null;
+            }
+
+            var pattern = line.strip();
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                return null;
+            }
+
+            var negated = pattern.startsWith("!");
+            if (negated) {
+                pattern = pattern.substring(1);
+            }
+
+            var rooted = pattern.startsWith("/");
+            var directoryOnly = pattern.endsWith("/");
+            pattern = stripSlashes(pattern);
+            if (pattern.isEmpty()) {
+                return null;
+            }
+
+            //**/name matches name at any depth, including the top level
+            var globs = new ArrayList<String>();
+            globs.add(pattern);
+            while (pattern.startsWith("**/")) {
+                pattern = pattern.substring(3);
+                globs.add(pattern);
+            }
+
+            var isAnchored = anchored || rooted || pattern.contains("/");
+            var matchers = new ArrayList<PathMatcher>();
+            for (var glob : globs) {
+                matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob.replace("{", "\\{").replace("}", "\\}")));
+            }
+
+            return new Rule(negated, directoryOnly, isAnchored, List.copyOf(matchers));
+        }
+
+        @NotNull
+        private static String stripSlashes(@NotNull String pattern) {
+            var start = 0;
+            var end = pattern.length();
+            while (start < end && pattern.charAt(start) == '/') {
+                start++;
+            }
+            while (end > start && pattern.charAt(end - 1) == '/') {
+                end--;
+            }
+            return pattern.substring(start, end);
+        }
+
+        private boolean matches(@NotNull Path relative, boolean directory) {
+            if (directoryOnly && !directory) {
+                return false;
+            }
+
+            var target = anchored ? relative : relative.getFileName();
+            if (target == null) {
+                return false;
+            }
+
+            for (var matcher : matchers) {
+                if (matcher.matches(target)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
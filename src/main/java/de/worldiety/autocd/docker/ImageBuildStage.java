@@ -0,0 +1,165 @@
+package de.worldiety.autocd.docker;
+
+import de.worldiety.autocd.persistence.AutoCD;
+import de.worldiety.autocd.util.FileType;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds and pushes the images of a project concurrently over one docker client. Besides the image of the project
+ * itself these are the otherImages without a registryImagePath whose dockerImagePath points at a local Dockerfile or
+ * its directory. Each of them is pushed to its own repository below the one of the project, named after the directory
+ * of the Dockerfile.
+ */
+public class ImageBuildStage {
+    private static final Logger log = LoggerFactory.getLogger(ImageBuildStage.class);
+    public static final int DEFAULT_PARALLELISM = 2;
+    private final Docker docker;
+    private final Path root;
+    private final int parallelism;
+    private final Map<String, Supplier<BuiltImage>> builds = new LinkedHashMap<>();
+
+    /**
+     * @param docker      the client all images are built with
+     * @param root        the project root, dockerImagePaths are relative to it
+     * @param parallelism the number of images built at the same time
+     */
+    public ImageBuildStage(@NotNull Docker docker, @NotNull Path root, int parallelism) {
+        this.docker = docker;
+        this.root = root;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public Docker getDocker() {
+        return docker;
+    }
+
+    /**
+     * @param name  the name of the image in the log, builds with the same name are only run once
+     * @param build builds and pushes the image and sets it in its configuration
+     */
+    public void add(@NotNull String name, @NotNull Supplier<BuiltImage> build) {
+        builds.putIfAbsent(name, build);
+    }
+
+    /**
+     * Adds the otherImages below autoCD that are built from a local Dockerfile, recursively. Configurations sharing
+     * a Dockerfile share the image.
+     *
+     * @param autoCD    the main configuration
+     * @param buildType the build type, used as tag
+     */
+    public void addOtherImages(@NotNull AutoCD autoCD, String buildType) {
+        var configs = new LinkedHashMap<File, List<AutoCD>>();
+        collectLocalBuilds(autoCD, configs);
+
+        configs.forEach((dockerfile, others) -> {
+            var repository = Docker.getRepository() + "/" + getImageName(dockerfile);
+            add(repository, () -> {
+                var image = docker.buildAndPushImageFromFile(dockerfile, repository, buildType, List.of(), FileType.OTHER);
+                others.forEach(other -> {
+                    other.setRegistryImagePath(image.getReference());
+                    other.setImageId(image.getImageId());
+                });
+                return image;
+            });
+        });
+    }
+
+    private void collectLocalBuilds(@NotNull AutoCD autoCD, @NotNull Map<File, List<AutoCD>> configs) {
+        for (var other : autoCD.getOtherImages()) {
+            var registryImagePath = other.getRegistryImagePath();
+            var dockerImagePath = other.getDockerImagePath();
+            if ((registryImagePath == null || registryImagePath.isEmpty()) && dockerImagePath != null && !dockerImagePath.isEmpty()) {
+                configs.computeIfAbsent(findDockerfile(dockerImagePath), it -> new ArrayList<>()).add(other);
+            }
+            collectLocalBuilds(other, configs);
+        }
+    }
+
+    @NotNull
+    private File findDockerfile(@NotNull String dockerImagePath) {
+        var path = root.resolve(dockerImagePath).normalize();
+        if (path.isAbsolute() || path.startsWith("..")) {
+            throw new IllegalStateException("The dockerImagePath " + dockerImagePath + " is outside of the project");
+        }
+
+        var file = path.toFile();
+        if (file.isDirectory()) {
+            file = new File(file, "Dockerfile");
+        }
+        if (!file.isFile()) {
+            throw new IllegalStateException("The dockerImagePath " + dockerImagePath + " does not point to a Dockerfile");
+        }
+        return file.getAbsoluteFile();
+    }
+
+    /**
+     * @return the directory of the Dockerfile relative to the root, or its name if it is in the root, as lower case
+     * image name
+     */
+    @NotNull
+    private String getImageName(@NotNull File dockerfile) {
+        var relative = root.toAbsolutePath().normalize().relativize(dockerfile.toPath());
+        var name = relative.getParent() == null ? relative.toString() : relative.getParent().toString();
+        return name.replace(File.separatorChar, '/')
+                .toLowerCase(Locale.ROOT)
+                .replaceAll("[^a-z0-9._/-]", "-");
+    }
+
+    /**
+     * Runs all added builds and blocks until they are done. A failing build does not cancel the others, so every
+     * image that could be built is pushed.
+     *
+     * @throws IllegalStateException if a build failed, with the failure of the first one as cause
+     */
+    public void run() {
+        if (builds.isEmpty()) {
+            return;
+        }
+
+        var executor = Executors.newFixedThreadPool(Math.min(parallelism, builds.size()));
+        var start = System.nanoTime();
+        var totalNanos = new AtomicLong();
+        var futures = new LinkedHashMap<String, CompletableFuture<BuiltImage>>();
+
+        try {
+            builds.forEach((name, build) -> futures.put(name, CompletableFuture.supplyAsync(() -> {
+                var buildStart = System.nanoTime();
+                var image = build.get();
+                var nanos = System.nanoTime() - buildStart;
+                totalNanos.addAndGet(nanos);
+                log.info("Built " + name + " in " + nanos / 1_000_000 + "ms");
+                return image;
+            }, executor)));
+
+            CompletableFuture.allOf(futures.values().toArray(CompletableFuture[]::new)).exceptionally(e -> null).join();
+        } finally {
+            executor.shutdown();
+        }
+
+        log.info("Finished " + builds.size() + " image builds in " + (System.nanoTime() - start) / 1_000_000 + "ms" +
+                " (total: " + totalNanos.get() / 1_000_000 + "ms)");
+
+        for (var entry : futures.entrySet()) {
+            try {
+                entry.getValue().join();
+            } catch (CompletionException e) {
+                throw new IllegalStateException("Could not build " + entry.getKey(), e.getCause());
+            }
+        }
+    }
+}
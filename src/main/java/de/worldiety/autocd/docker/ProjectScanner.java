@@ -0,0 +1,275 @@
+package de.worldiety.autocd.docker;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lists the files of a project. Directories that never contain sources of the project itself (.git, .gradle and
+ * node_modules anywhere, build and vendor in the project root) and everything excluded by a .gitignore or the
+ * .dockerignore are skipped without being listed. Symbolic links are reported as files and not followed.
+ * <p>
+ * With a parallelism above one the directories are listed concurrently on a fork-join pool, the order of the result
+ * is then unspecified.
+ * <p>
+ * In a git checkout the tracked files can be taken from the git index instead, which leaves out untracked build
+ * output without walking it. Tracked files are listed even if a .gitignore matches them. If the index can not be
+ * read the directories are walked.
+ */
+public class ProjectScanner {
+    private static final Logger log = LoggerFactory.getLogger(ProjectScanner.class);
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final Set<String> PRUNED_DIRECTORIES = Set.of(".git", ".gradle", "node_modules");
+    //Below the root these names are used for sources as well, e.g. cmd/build, there only a .gitignore excludes them
+    private static final Set<String> PRUNED_ROOT_DIRECTORIES = Set.of("build", "vendor");
+    private final Path root;
+    private final int parallelism;
+    private final boolean useGitIndex;
+    private final IgnoreRules dockerignore;
+
+    /**
+     * @param root        the project root
+     * @param parallelism the number of threads listing directories, 1 walks the tree on the calling thread
+     */
+    public ProjectScanner(@NotNull Path root, int parallelism) {
+        this(root, parallelism, false);
+    }
+
+    /**
+     * @param root        the project root
+     * @param parallelism the number of threads listing directories, 1 walks the tree on the calling thread
+     * @param useGitIndex whether to list the tracked files from the git index if root is a git checkout
+     */
+    public ProjectScanner(@NotNull Path root, int parallelism, boolean useGitIndex) {
+        if (!Files.isDirectory(root)) {
+            throw new IllegalArgumentException(root + " is not a directory!");
+        }
+        this.root = root;
+        this.parallelism = Math.max(1, parallelism);
+        this.useGitIndex = useGitIndex;
+        this.dockerignore = IgnoreRules.dockerignore(root);
+    }
+
+    /**
+     * @return all files of the project that are not ignored
+     */
+    @NotNull
+    public List<Path> scan() {
+        return scan(it -> false);
+    }
+
+    /**
+     * Lists the files of the project until stop returns true. With a parallelism above one, stop is called
+     * concurrently and a few more files may be listed after it returned true.
+     *
+     * @param stop called for every listed file
+     * @return the listed files, including the one stop returned true for
+     */
+    @NotNull
+    public List<Path> scan(@NotNull Predicate<Path> stop) {
+        if (useGitIndex) {
+            var tracked = readTrackedFiles();
+            if (tracked != null) {
+                return listTracked(tracked, stop);
+            }
+        }
+
+        var files = new ConcurrentLinkedQueue<Path>();
+        var stopped = new AtomicBoolean();
+
+        if (parallelism == 1) {
+            walk(files, stop);
+        } else {
+            var pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new DirectoryTask(root, root, IgnoreRules.EMPTY, dockerignore, files, stop, stopped));
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        return new ArrayList<>(files);
+    }
+
+    private List<String> readTrackedFiles() {
+        try {
+            var index = GitIndexReader.findIndex(root);
+            if (index == null || !Files.isRegularFile(index)) {
+                return null;
+            }
+            return GitIndexReader.read(index);
+        } catch (IOException e) {
+            log.warn("Could not read the git index, walking " + root + " instead", e);
+            return null;
+        }
+    }
+
+    @NotNull
+    private List<Path> listTracked(@NotNull List<String> tracked, @NotNull Predicate<Path> stop) {
+        var files = new ArrayList<Path>();
+        //The index is sorted, so the decision for a directory is reused by all files in it
+        var ignoredDirectories = new HashMap<String, Boolean>();
+
+        for (var name : tracked) {
+            var separator = name.lastIndexOf('/');
+            if (separator >= 0 && isIgnoredDirectory(name.substring(0, separator), ignoredDirectories)) {
+                continue;
+            }
+
+            var file = root.resolve(name);
+            if (dockerignore.isIgnored(file, false)) {
+                continue;
+            }
+
+            files.add(file);
+            if (stop.test(file)) {
+                break;
+            }
+        }
+        return files;
+    }
+
+    private boolean isIgnoredDirectory(@NotNull String directory, @NotNull Map<String, Boolean> ignoredDirectories) {
+        var ignored = ignoredDirectories.get(directory);
+        if (ignored == null) {
+            var separator = directory.lastIndexOf('/');
+            ignored = separator >= 0 && isIgnoredDirectory(directory.substring(0, separator), ignoredDirectories)
+                    || isIgnored(root.resolve(directory), true, IgnoreRules.EMPTY);
+            ignoredDirectories.put(directory, ignored);
+        }
+        return ignored;
+    }
+
+    private void walk(Queue<Path> files, Predicate<Path> stop) {
+        var rules = new ArrayDeque<IgnoreRules>();
+        rules.push(IgnoreRules.EMPTY);
+
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(root) && isIgnored(dir, true, rules.peek())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    rules.push(rules.peek().withGitignore(dir));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isDirectory() || isIgnored(file, false, rules.peek())) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    files.add(file);
+                    return stop.test(file) ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    log.warn("Could not read " + file + ", skipping it", exc);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+                    rules.pop();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not scan " + root, e);
+        }
+    }
+
+    private boolean isIgnored(@NotNull Path path, boolean directory, @NotNull IgnoreRules rules) {
+        return isIgnored(root, path, directory, rules, dockerignore);
+    }
+
+    private static boolean isIgnored(@NotNull Path root, @NotNull Path path, boolean directory, @NotNull IgnoreRules rules,
+                                     @NotNull IgnoreRules dockerignore) {
+        if (directory) {
+            var name = path.getFileName().toString();
+            if (PRUNED_DIRECTORIES.contains(name) || PRUNED_ROOT_DIRECTORIES.contains(name) && root.equals(path.getParent())) {
+                return true;
+            }
+        }
+        return rules.isIgnored(path, directory) || dockerignore.isIgnored(path, directory);
+    }
+
+    private static class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path root;
+        private final Path directory;
+        private final IgnoreRules parentRules;
+        private final IgnoreRules dockerignore;
+        private final Queue<Path> files;
+        private final Predicate<Path> stop;
+        private final AtomicBoolean stopped;
+
+        private DirectoryTask(Path root, Path directory, IgnoreRules parentRules, IgnoreRules dockerignore,
+                              Queue<Path> files, Predicate<Path> stop, AtomicBoolean stopped) {
+            this.root = root;
+            this.directory = directory;
+            this.parentRules = parentRules;
+            this.dockerignore = dockerignore;
+            this.files = files;
+            this.stop = stop;
+            this.stopped = stopped;
+        }
+
+        @Override
+        protected void compute() {
+            if (stopped.get()) {
+                return;
+            }
+
+            var rules = parentRules.withGitignore(directory);
+            var subdirectories = new ArrayList<DirectoryTask>();
+
+            try (var entries = Files.newDirectoryStream(directory)) {
+                for (var entry : entries) {
+                    if (stopped.get()) {
+                        return;
+                    }
+
+                    var attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) {
+                        if (!isIgnored(root, entry, true, rules, dockerignore)) {
+                            subdirectories.add(new DirectoryTask(root, entry, rules, dockerignore, files, stop, stopped));
+                        }
+                    } else if (!isIgnored(root, entry, false, rules, dockerignore)) {
+                        files.add(entry);
+                        if (stop.test(entry)) {
+                            stopped.set(true);
+                            return;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Could not read " + directory + ", skipping it", e);
+                return;
+            }
+
+            invokeAll(subdirectories);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package de.worldiety.autocd.docker;
+
+import de.worldiety.autocd.util.FileType;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.io.FilenameUtils;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides the type of a project from the extensions of its files. The marker files refining the type, nuxt.config.js
+ * and package.json, are read once when the detector is created. If files of several types were seen, the type
+ * declared first in FileType wins.
+ */
+class ProjectTypeDetector {
+    private static final Logger log = LoggerFactory.getLogger(ProjectTypeDetector.class);
+    private static final String EISEN_DEPENDENCY = "@kloudsoftware/eisen";
+    //No file seen afterwards can change the type once one of this type has been seen
+    private static final FileType HIGHEST = FileType.values()[0];
+    private final boolean nuxt;
+    private final boolean eisen;
+    private final Set<FileType> found = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param root the project root containing the marker files
+     */
+    ProjectTypeDetector(@NotNull Path root) {
+        this.nuxt = Files.exists(root.resolve("nuxt.config.js"));
+        this.eisen = readPackageJson(root).contains(EISEN_DEPENDENCY);
+    }
+
+    /**
+     * Records the type of a file. May be called concurrently.
+     *
+     * @param file a file of the project
+     * @return true if the file decides the type of the project, whatever files are seen afterwards
+     */
+    boolean accept(@NotNull Path file) {
+        var fileName = file.getFileName();
+        if (fileName == null) {
+            return false;
+        }
+
+        var type = classify(FilenameUtils.getExtension(fileName.toString()));
+        if (type.getDockerConfig() == null) {
+            return false;
+        }
+
+        found.add(type);
+        return type == HIGHEST;
+    }
+
+    /**
+     * @param files the files to classify, in addition to the ones accepted before
+     * @return the type of the project
+     */
+    FileType classify(@NotNull Collection<Path> files) {
+        files.forEach(this::accept);
+        return getFileType();
+    }
+
+    /**
+     * @return the type of the project, OTHER if none of the accepted files decided it
+     */
+    FileType getFileType() {
+        return Arrays.stream(FileType.values())
+                .filter(found::contains)
+                .findFirst()
+                .orElse(FileType.OTHER);
+    }
+
+    @NotNull
+    private FileType classify(@NotNull String ext) {
+        switch (ext) {
+            case "go":
+                return FileType.GO;
+            case "java":
+                return FileType.JAVA;
+            case "vue":
+                return nuxt ? FileType.NUXT : FileType.VUE;
+            case "ts":
+            case "js":
+                return eisen ? FileType.EISEN : FileType.OTHER;
+            default:
+                return FileType.OTHER;
+        }
+    }
+
+    @NotNull
+    private static String readPackageJson(@NotNull Path root) {
+        var packageJson = root.resolve("package.json");
+        if (!Files.isRegularFile(packageJson)) {
+            return "";
+        }
+
+        try {
+            return Files.readString(packageJson);
+        } catch (IOException e) {
+            log.warn("Could not read " + packageJson, e);
+            return "";
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package de.worldiety.autocd.docker;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import de.worldiety.autocd.util.Environment;
+import de.worldiety.autocd.util.Util;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads and writes manifests of one repository through the docker registry HTTP API v2, which is enough to check
+ * whether a tag exists and to tag an image without pulling it. Registries asking for a bearer token, like the GitLab
+ * registry, are authenticated against the realm of their challenge with the given credentials.
+ */
+public class RegistryClient {
+    private static final Logger log = LoggerFactory.getLogger(RegistryClient.class);
+    private static final String DOCKER_MANIFEST = "application/vnd.docker.distribution.manifest.v2+json";
+    private static final String OCI_MANIFEST = "application/vnd.oci.image.manifest.v1+json";
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    private static final Pattern CHALLENGE_PARAMETER = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+    private final URI baseUri;
+    private final String repository;
+    private final String user;
+    private final String password;
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+    private volatile String authorization;
+
+    /**
+     * @param baseUri    the registry, e.g. https://registry.gitlab.com
+     * @param repository the repository within the registry, e.g. group/project
+     * @param user       the user, null for anonymous access
+     * @param password   the password or token of the user
+     */
+    public RegistryClient(URI baseUri, String repository, String user, String password) {
+        this.baseUri = baseUri;
+        this.repository = repository;
+        this.user = user;
+        this.password = password;
+    }
+
+    /**
+     * @return the client for the repository of the project in the CI registry, empty when running locally
+     */
+    @NotNull
+    public static Optional<RegistryClient> fromEnvironment() {
+        var registry = System.getenv(Environment.CI_REGISTRY.toString());
+        if (registry == null || registry.isBlank()) {
+            return Optional.empty();
+        }
+
+        var repository = Docker.getRepository().substring(registry.length() + 1);
+        var base = registry.contains("://") ? registry : "https://" + registry;
+        return Optional.of(new RegistryClient(URI.create(base), repository,
+                System.getenv(Environment.CI_REGISTRY_USER.toString()),
+                System.getenv(Environment.CI_REGISTRY_PASSWORD.toString())));
+    }
+
+    /**
+     * @param repository another repository within the same registry, e.g. group/project/service
+     * @return a client for it with the same credentials
+     */
+    @NotNull
+    public RegistryClient forRepository(String repository) {
+        return new RegistryClient(baseUri, repository, user, password);
+    }
+
+    /**
+     * @param reference a tag or digest
+     * @return the image manifest, empty if there is no such tag
+     * @throws IOException if the registry could not be asked or returned a manifest list
+     */
+    @NotNull
+    public Optional<Manifest> getManifest(String reference) throws IOException {
+        var response = send(HttpRequest.newBuilder(manifestUri(reference))
+                .header("Accept", DOCKER_MANIFEST + ", " + OCI_MANIFEST)
+                .GET());
+
+        if (response.statusCode() == 404) {
+            return Optional.empty();
+        }
+        check(response, "read the manifest " + reference);
+
+        var mediaType = response.headers().firstValue("Content-Type").orElse(DOCKER_MANIFEST);
+        if (!mediaType.startsWith(DOCKER_MANIFEST) && !mediaType.startsWith(OCI_MANIFEST)) {
+            throw new IOException(repository + ":" + reference + " is a " + mediaType + ", not an image manifest");
+        }
+
+        try {
+            var json = new JsonParser().parse(new String(response.body(), StandardCharsets.UTF_8)).getAsJsonObject();
+            var configDigest = json.getAsJsonObject("config").get("digest").getAsString();
+            return Optional.of(new Manifest(response.body(), mediaType, configDigest));
+        } catch (JsonParseException | IllegalStateException | NullPointerException e) {
+            throw new IOException("The manifest " + repository + ":" + reference + " could not be parsed", e);
+        }
+    }
+
+    /**
+     * Tags the image of the manifest. The registry already has all blobs, so only the manifest is uploaded.
+     *
+     * @param tag      the tag to set
+     * @param manifest a manifest of this repository
+     */
+    public void putManifest(String tag, @NotNull Manifest manifest) throws IOException {
+        var response = send(HttpRequest.newBuilder(manifestUri(tag))
+                .header("Content-Type", manifest.getMediaType())
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(manifest.getContent())));
+        check(response, "tag " + tag);
+    }
+
+    @NotNull
+    private URI manifestUri(String reference) {
+        return baseUri.resolve("/v2/" + repository + "/manifests/" + reference);
+    }
+
+    private void check(@NotNull HttpResponse<byte[]> response, String action) throws IOException {
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("Could not " + action + " in " + repository + ", the registry answered "
+                    + response.statusCode() + ": " + new String(response.body(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @NotNull
+    private HttpResponse<byte[]> send(@NotNull HttpRequest.Builder request) throws IOException {
+        var response = sendAuthorized(request);
+        if (response.statusCode() != 401) {
+            return response;
+        }
+
+        var challenge = response.headers().firstValue("WWW-Authenticate").orElse("");
+        authorization = authenticate(challenge);
+        return sendAuthorized(request);
+    }
+
+    @NotNull
+    private HttpResponse<byte[]> sendAuthorized(@NotNull HttpRequest.Builder request) throws IOException {
+        request.timeout(TIMEOUT);
+        var current = authorization;
+        if (current != null) {
+            request.setHeader("Authorization", current);
+        }
+
+        try {
+            return httpClient.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while talking to the registry", e);
+        }
+    }
+
+    /**
+     * @param challenge the WWW-Authenticate header of a 401 response
+     * @return the Authorization header answering the challenge
+     */
+    @NotNull
+    private String authenticate(@NotNull String challenge) throws IOException {
+        if (challenge.regionMatches(true, 0, "Basic", 0, 5)) {
+            return basic();
+        }
+        if (!challenge.regionMatches(true, 0, "Bearer", 0, 6)) {
+            throw new IOException("The registry asks for the unsupported authentication " + challenge);
+        }
+
+        var parameters = new HashMap<String, String>();
+        var matcher = CHALLENGE_PARAMETER.matcher(challenge);
+        while (matcher.find()) {
+            parameters.put(matcher.group(1), matcher.group(2));
+        }
+        if (!parameters.containsKey("realm")) {
+            throw new IOException("The registry challenge has no realm: " + challenge);
+        }
+
+        //Retagging needs push access, asking for it right away saves a second token
+        var query = new StringBuilder("scope=").append(encode("repository:" + repository + ":pull,push"));
+        if (parameters.containsKey("service")) {
+            query.append("&service=").append(encode(parameters.get("service")));
+        }
+
+        var request = HttpRequest.newBuilder(URI.create(parameters.get("realm") + "?" + query)).timeout(TIMEOUT).GET();
+        if (user != null) {
+            request.header("Authorization", basic());
+        }
+
+        HttpResponse<String> response;
+        try {
+            response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while requesting a registry token", e);
+        }
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("Could not get a registry token, " + response.statusCode() + ": " + response.body());
+        }
+
+        var token = readToken(response.body());
+        log.debug("Authenticated against " + parameters.get("realm"));
+        return "Bearer " + token;
+    }
+
+    @NotNull
+    private static String readToken(String body) throws IOException {
+        try {
+            var json = new JsonParser().parse(body).getAsJsonObject();
+            if (json.has("token")) {
+                return json.get("token").getAsString();
+            }
+            if (json.has("access_token")) {
+                return json.get("access_token").getAsString();
+            }
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("The registry token could not be parsed", e);
+        }
+        throw new IOException("The registry token response has no token");
+    }
+
+    @NotNull
+    private String basic() {
+        var credentials = (user == null ? "" : user) + ":" + (password == null ? "" : password);
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An image manifest as stored in the registry. The content is kept byte for byte, so putting it under another
+     * tag refers to the same image.
+     */
+    public static final class Manifest {
+        private final byte[] content;
+        private final String mediaType;
+        private final String configDigest;
+
+        Manifest(byte[] content, String mediaType, String configDigest) {
+            this.content = content;
+            this.mediaType = mediaType;
+            this.configDigest = configDigest;
+        }
+
+        public byte[] getContent() {
+            return content.clone();
+        }
+
+        public String getMediaType() {
+            return mediaType;
+        }
+
+        /**
+         * @return the digest of the image configuration, which docker uses as image id
+         */
+        public String getConfigDigest() {
+            return configDigest;
+        }
+
+        /**
+         * @return the digest of the manifest, which pins the image in references like repository@digest
+         */
+        public String getDigest() {
+            return "sha256:" + Util.bytesToHex(Util.newSha256().digest(content));
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package de.worldiety.autocd.k8s;
+
+import io.kubernetes.client.ApiException;
+
+/**
+ * A single call against the Kubernetes API
+ *
+ * @param <T> the type of the response
+ */
+@FunctionalInterface
+interface ApiCall<T> {
+    T call() throws ApiException;
+}
@@ -0,0 +1,105 @@
+package de.worldiety.autocd.k8s;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.OkHttpClient;
+import de.worldiety.autocd.util.Util;
+import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.util.ClientBuilder;
+import io.kubernetes.client.util.credentials.AccessTokenAuthentication;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Creates the api clients for one cluster. All clients share one connection pool and one dispatcher, so the
+ * connections opened by one of them are reused by the others and concurrent calls are not throttled by the
+ * OkHttp default of five requests per host.
+ */
+public class ApiClients {
+    private static final int MAX_REQUESTS = 64;
+    private static final int MAX_IDLE_CONNECTIONS = 16;
+    private static final Duration KEEP_ALIVE = Duration.ofMinutes(5);
+    private final String basePath;
+    private final String token;
+    private final byte[] caCert;
+    private final ConnectionPool connectionPool = new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE.toMillis());
+    private final Dispatcher dispatcher;
+    private SSLSocketFactory sslSocketFactory;
+    private HostnameVerifier hostnameVerifier;
+
+    /**
+     * @param basePath the url of the cluster
+     * @param token    the token used to authenticate
+     * @param caCert   the certificate of the cluster CA, null for plain http
+     */
+    public ApiClients(String basePath, String token, byte[] caCert) {
+        this.basePath = basePath;
+        this.token = token;
+        this.caCert = caCert == null ? null : caCert.clone();
+        this.dispatcher = new Dispatcher(Executors.newCachedThreadPool(Util.daemonThreadFactory("autocd-k8s-http")));
+        this.dispatcher.setMaxRequests(MAX_REQUESTS);
+        this.dispatcher.setMaxRequestsPerHost(MAX_REQUESTS);
+    }
+
+    @NotNull
+    public static ApiClients of(String basePath, String token, String caCertFile) throws IOException {
+        return new ApiClients(basePath, token, Files.readAllBytes(Path.of(caCertFile)));
+    }
+
+    /**
+     * @return a client using the default patch format of the generated apis
+     */
+    @NotNull
+    public ApiClient create() {
+        return create(null);
+    }
+
+    /**
+     * @param patchFormat the content type every patch is sent with, e.g. V1Patch.PATCH_FORMAT_JSON_MERGE_PATCH
+     * @return a client sending all patches in the given format
+     */
+    @NotNull
+    public synchronized ApiClient create(String patchFormat) {
+        var client = new ClientBuilder()
+                .setBasePath(basePath)
+                .setVerifyingSsl(true)
+                .setAuthentication(new AccessTokenAuthentication(token))
+                .setCertificateAuthority(caCert)
+                .setOverridePatchFormat(patchFormat)
+                .build();
+        share(client.getHttpClient());
+        return client;
+    }
+
+    /**
+     * Watches are long running requests, so the returned client does not time out while reading.
+     *
+     * @return a client for watches and informers
+     */
+    @NotNull
+    public ApiClient createForWatches() {
+        var client = create();
+        client.getHttpClient().setReadTimeout(0, TimeUnit.SECONDS);
+        return client;
+    }
+
+    private void share(@NotNull OkHttpClient httpClient) {
+        //Connections are only reused between clients with the same socket factory
+        if (sslSocketFactory == null) {
+            sslSocketFactory = httpClient.getSslSocketFactory();
+            hostnameVerifier = httpClient.getHostnameVerifier();
+        }
+
+        httpClient.setSslSocketFactory(sslSocketFactory)
+                .setHostnameVerifier(hostnameVerifier)
+                .setConnectionPool(connectionPool)
+                .setDispatcher(dispatcher);
+    }
+}
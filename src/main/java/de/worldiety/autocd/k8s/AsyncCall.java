@@ -0,0 +1,92 @@
+package de.worldiety.autocd.k8s;
+
+import com.squareup.okhttp.Call;
+import io.kubernetes.client.ApiCallback;
+import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.ApiException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Adapts the callbacks of asynchronously executed api calls to CompletableFutures, so independent calls can be sent
+ * at the same time and only real ordering dependencies have to be awaited.
+ *
+ * @param <T> the type of the response
+ */
+class AsyncCall<T> implements ApiCallback<T> {
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+
+    private AsyncCall() {
+    }
+
+    /**
+     * Executes a call without parsing the response body. Delete calls return either a status or the deleted object,
+     * the generated *Async methods fail to parse the latter on the http thread and never invoke their callback. The
+     * same happens for any other response the client cannot parse, so every call whose response is not needed is sent
+     * this way.
+     * <p>
+     * https://github.com/kubernetes-client/java/issues/86
+     *
+     * @param client the client to execute the call with
+     * @param call   builds the call using one of the *Call api methods
+     * @return a future that completes once the call succeeded or with the ApiException
+     */
+    @NotNull
+    static CompletableFuture<Void> ignoringBody(@NotNull ApiClient client, @NotNull ApiCall<Call> call) {
+        var callback = new AsyncCall<Void>();
+        try {
+            client.executeAsync(call.call(), callback);
+        } catch (ApiException e) {
+            callback.future.completeExceptionally(e);
+        }
+        return callback.future;
+    }
+
+    /**
+     * Waits for all futures and rethrows the first failure unwrapped.
+     *
+     * @param futures the futures to wait for
+     */
+    static void await(@NotNull List<CompletableFuture<Void>> futures) {
+        try {
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param throwable the failure of a future
+     * @return the ApiException that caused it or null
+     */
+    static ApiException unwrap(Throwable throwable) {
+        var cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+        return cause instanceof ApiException ? (ApiException) cause : null;
+    }
+
+    @Override
+    public void onFailure(ApiException e, int statusCode, Map<String, List<String>> responseHeaders) {
+        future.completeExceptionally(e);
+    }
+
+    @Override
+    public void onSuccess(T result, int statusCode, Map<String, List<String>> responseHeaders) {
+        future.complete(result);
+    }
+
+    @Override
+    public void onUploadProgress(long bytesWritten, long contentLength, boolean done) {
+        //No-op
+    }
+
+    @Override
+    public void onDownloadProgress(long bytesRead, long contentLength, boolean done) {
+        //No-op
+    }
+}
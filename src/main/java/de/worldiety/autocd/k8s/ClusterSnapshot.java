@@ -0,0 +1,133 @@
+package de.worldiety.autocd.k8s;
+
+import de.worldiety.autocd.util.Util;
+import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.apis.CoreV1Api;
+import io.kubernetes.client.apis.ExtensionsV1beta1Api;
+import io.kubernetes.client.informer.SharedIndexInformer;
+import io.kubernetes.client.informer.SharedInformerFactory;
+import io.kubernetes.client.models.ExtensionsV1beta1Ingress;
+import io.kubernetes.client.models.ExtensionsV1beta1IngressList;
+import io.kubernetes.client.models.V1PersistentVolume;
+import io.kubernetes.client.models.V1PersistentVolumeClaim;
+import io.kubernetes.client.models.V1PersistentVolumeClaimList;
+import io.kubernetes.client.models.V1PersistentVolumeList;
+import io.kubernetes.client.models.V1Pod;
+import io.kubernetes.client.models.V1PodList;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the cluster state that is needed during a deployment in memory. Every kind is listed once and then kept up to
+ * date by a watch, so the lookups of the K8sClient do not need a round trip to the API server. One snapshot is
+ * shared by all deployments of a run.
+ * <p>
+ * The api client has to be a dedicated one without read timeout, the watches are long running requests.
+ */
+public class ClusterSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(ClusterSnapshot.class);
+    private static final long SYNC_POLL_MILLIS = 50;
+    public static final Duration DEFAULT_SYNC_TIMEOUT = Duration.ofSeconds(30);
+    private final SharedInformerFactory factory;
+    private final SharedIndexInformer<V1PersistentVolume> volumes;
+    private final SharedIndexInformer<ExtensionsV1beta1Ingress> ingresses;
+    private final SharedIndexInformer<V1Pod> pods;
+    private final SharedIndexInformer<V1PersistentVolumeClaim> claims;
+    private final IngressHostIndex ingressHostIndex = new IngressHostIndex();
+
+    /**
+     * @param client    api client without read timeout
+     * @param namespace the namespace the pods and claims are watched in
+     */
+    public ClusterSnapshot(@NotNull ApiClient client, String namespace) {
+        var coreV1Api = new CoreV1Api(client);
+        var extensionsV1beta1Api = new ExtensionsV1beta1Api(client);
+        //Daemon threads, the watches must not keep the JVM alive
+        this.factory = new SharedInformerFactory(client, Executors.newCachedThreadPool(Util.daemonThreadFactory("autocd-informer")));
+
+        this.volumes = factory.sharedIndexInformerFor(params -> coreV1Api.listPersistentVolumeCall(
+                null, null, null, null, null, params.resourceVersion, params.timeoutSeconds, params.watch, null, null),
+                V1PersistentVolume.class, V1PersistentVolumeList.class);
+        this.ingresses = factory.sharedIndexInformerFor(params -> extensionsV1beta1Api.listIngressForAllNamespacesCall(
+                null, null, null, null, null, params.resourceVersion, params.timeoutSeconds, params.watch, null, null),
+                ExtensionsV1beta1Ingress.class, ExtensionsV1beta1IngressList.class);
+        this.ingresses.addEventHandler(ingressHostIndex);
+        this.pods = factory.sharedIndexInformerFor(params -> coreV1Api.listNamespacedPodCall(
+                namespace, null, null, null, null, null, params.resourceVersion, params.timeoutSeconds, params.watch, null, null),
+                V1Pod.class, V1PodList.class);
+        this.claims = factory.sharedIndexInformerFor(params -> coreV1Api.listNamespacedPersistentVolumeClaimCall(
+                namespace, null, null, null, null, null, params.resourceVersion, params.timeoutSeconds, params.watch, null, null),
+                V1PersistentVolumeClaim.class, V1PersistentVolumeClaimList.class);
+    }
+
+    /**
+     * Starts the watches and blocks until every kind has been listed once.
+     *
+     * @param timeout the time to wait for the initial lists
+     * @throws IllegalStateException if the initial lists did not complete in time
+     */
+    public void start(@NotNull Duration timeout) {
+        factory.startAllRegisteredInformers();
+        var end = System.nanoTime() + timeout.toNanos();
+
+        try {
+            while (!isSynced()) {
+                if (System.nanoTime() > end) {
+                    stop();
+                    throw new IllegalStateException("Cluster state could not be synced within " + timeout.toSeconds() + "s");
+                }
+                Thread.sleep(SYNC_POLL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop();
+            throw new IllegalStateException("Interrupted while syncing the cluster state", e);
+        }
+
+        log.info("Synced cluster state: " + getPersistentVolumes().size() + " volumes, " + getIngresses().size() + " ingresses");
+    }
+
+    private boolean isSynced() {
+        return volumes.hasSynced() && ingresses.hasSynced() && pods.hasSynced() && claims.hasSynced();
+    }
+
+    public void stop() {
+        factory.stopAllRegisteredInformers();
+    }
+
+    public List<V1PersistentVolume> getPersistentVolumes() {
+        return volumes.getIndexer().list();
+    }
+
+    /**
+     * @return the ingresses of all namespaces
+     */
+    public List<ExtensionsV1beta1Ingress> getIngresses() {
+        return ingresses.getIndexer().list();
+    }
+
+    /**
+     * @return the host index of all ingresses, kept up to date by the watch
+     */
+    public IngressHostIndex getIngressHostIndex() {
+        return ingressHostIndex;
+    }
+
+    /**
+     * @return the pods of the watched namespace
+     */
+    public List<V1Pod> getPods() {
+        return pods.getIndexer().list();
+    }
+
+    /**
+     * @return the claims of the watched namespace
+     */
+    public List<V1PersistentVolumeClaim> getClaims() {
+        return claims.getIndexer().list();
+    }
+}
@@ -0,0 +1,88 @@
+package de.worldiety.autocd.k8s;
+
+import io.kubernetes.client.ApiException;
+import java.time.Duration;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Waits for objects that are in the "Terminating" phase to disappear. The object is polled with an exponential
+ * backoff, so short deletions are noticed quickly while finalizers that hang do not block the deployment forever.
+ */
+public class DeletionAwaiter {
+    private static final Logger log = LoggerFactory.getLogger(DeletionAwaiter.class);
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 2000;
+    public static final Duration DEFAULT_DEADLINE = Duration.ofMinutes(2);
+    private final Duration deadline;
+    private final Map<String, LongSummaryStatistics> waitTimes = new ConcurrentHashMap<>();
+
+    public DeletionAwaiter(@NotNull Duration deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Blocks until the object is gone or the deadline has passed.
+     *
+     * @param kind the kind of the object, wait times are recorded per kind
+     * @param name the name of the object
+     * @param read reads the object, has to fail with 404 once it is gone
+     * @return true if the object has been deleted, false if the deadline passed first
+     */
+    boolean await(String kind, String name, @NotNull ApiCall<?> read) {
+        var start = System.nanoTime();
+        var end = start + deadline.toNanos();
+        var backoff = INITIAL_BACKOFF_MILLIS;
+
+        try {
+            while (System.nanoTime() < end) {
+                try {
+                    read.call();
+                } catch (ApiException e) {
+                    if (e.getCode() == HTTP_NOT_FOUND) {
+                        record(kind, start);
+                        return true;
+                    }
+
+                    log.warn("Could not read " + kind + " " + name + " while waiting for its deletion", e);
+                }
+
+                Thread.sleep(Math.min(backoff, Math.max(1, (end - System.nanoTime()) / 1_000_000)));
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        record(kind, start);
+        return false;
+    }
+
+    private void record(String kind, long start) {
+        var millis = (System.nanoTime() - start) / 1_000_000;
+        //compute runs atomically per kind, the statistics themselves are not thread-safe
+        waitTimes.compute(kind, (it, stats) -> {
+            var updated = stats == null ? new LongSummaryStatistics() : stats;
+            updated.accept(millis);
+            return updated;
+        });
+    }
+
+    /**
+     * @return the time spent waiting for deletions in milliseconds, per kind
+     */
+    public Map<String, LongSummaryStatistics> getWaitTimes() {
+        return new TreeMap<>(waitTimes);
+    }
+
+    public void logWaitTimes() {
+        getWaitTimes().forEach((kind, stats) -> log.info("Waited for " + stats.getCount() + " deletions of " + kind +
+                ": total " + stats.getSum() + "ms, max " + stats.getMax() + "ms"));
+    }
+}
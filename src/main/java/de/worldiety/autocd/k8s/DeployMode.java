@@ -0,0 +1,31 @@
+package de.worldiety.autocd.k8s;
+
+import org.jetbrains.annotations.NotNull;
+
+public enum DeployMode {
+    //Deletes all objects and creates them again, the service is unavailable in between
+    RECREATE,
+    //Updates existing objects in place and only creates missing ones, the deployment performs a rolling update
+    RECONCILE;
+
+    /**
+     * Parses the mode from its name, unknown or missing values fall back to RECREATE
+     *
+     * @param name the name of the mode, case insensitive
+     * @return the mode
+     */
+    @NotNull
+    public static DeployMode of(String name) {
+        if (name == null) {
+            return RECREATE;
+        }
+
+        for (var mode : values()) {
+            if (mode.name().equalsIgnoreCase(name.trim())) {
+                return mode;
+            }
+        }
+
+        return RECREATE;
+    }
+}
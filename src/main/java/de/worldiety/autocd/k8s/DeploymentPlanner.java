@@ -0,0 +1,141 @@
+package de.worldiety.autocd.k8s;
+
+import de.worldiety.autocd.persistence.AutoCD;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deploys an autoCD configuration together with its otherImages. The otherImages tree is treated as a dependency
+ * graph: siblings are independent of each other and are deployed concurrently, a parent is only deployed once all of
+ * its children are done.
+ */
+public class DeploymentPlanner {
+    private static final Logger log = LoggerFactory.getLogger(DeploymentPlanner.class);
+    public static final int DEFAULT_PARALLELISM = 4;
+    private final int parallelism;
+
+    public DeploymentPlanner(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Deploys the whole tree below root and blocks until every node has been deployed. If a deployment fails the
+     * nodes that depend on it are not deployed and the original exception is rethrown.
+     *
+     * @param root     the main configuration
+     * @param deployer the function deploying a single configuration
+     * @return timings of the run
+     */
+    public DeploymentReport deploy(@NotNull AutoCD root, @NotNull Consumer<AutoCD> deployer) {
+        var executor = Executors.newFixedThreadPool(parallelism);
+        var graph = buildGraph(root);
+        var start = System.nanoTime();
+
+        try {
+            schedule(graph, deployer, executor).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+
+        var report = new DeploymentReport(System.nanoTime() - start, graph.totalNanos(), graph.criticalPathNanos(), graph.size());
+        log.info(report.toString());
+        return report;
+    }
+
+    @NotNull
+    private Node buildGraph(@NotNull AutoCD autoCD) {
+        var node = new Node(autoCD);
+        autoCD.getOtherImages().forEach(config -> node.children.add(buildGraph(config)));
+        return node;
+    }
+
+    private CompletableFuture<Void> schedule(@NotNull Node node, Consumer<AutoCD> deployer, ExecutorService executor) {
+        var children = node.children.stream()
+                .map(child -> schedule(child, deployer, executor))
+                .toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(children).thenRunAsync(() -> {
+            var start = System.nanoTime();
+            deployer.accept(node.autoCD);
+            node.nanos = System.nanoTime() - start;
+        }, executor);
+    }
+
+    private static class Node {
+        private final AutoCD autoCD;
+        private final List<Node> children = new ArrayList<>();
+        private volatile long nanos;
+
+        private Node(AutoCD autoCD) {
+            this.autoCD = autoCD;
+        }
+
+        private long totalNanos() {
+            return nanos + children.stream().mapToLong(Node::totalNanos).sum();
+        }
+
+        private long criticalPathNanos() {
+            return nanos + children.stream().mapToLong(Node::criticalPathNanos).max().orElse(0);
+        }
+
+        private int size() {
+            return 1 + children.stream().mapToInt(Node::size).sum();
+        }
+    }
+
+    public static class DeploymentReport {
+        private final long wallNanos;
+        private final long totalNanos;
+        private final long criticalPathNanos;
+        private final int deployments;
+
+        public DeploymentReport(long wallNanos, long totalNanos, long criticalPathNanos, int deployments) {
+            this.wallNanos = wallNanos;
+            this.totalNanos = totalNanos;
+            this.criticalPathNanos = criticalPathNanos;
+            this.deployments = deployments;
+        }
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        /**
+         * @return the summed up time of all deployments, which is what a sequential run would have taken
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * @return the time of the longest chain of dependent deployments, the lower bound for the wall time
+         */
+        public long getCriticalPathNanos() {
+            return criticalPathNanos;
+        }
+
+        public int getDeployments() {
+            return deployments;
+        }
+
+        @Override
+        public String toString() {
+            return "Deployed " + deployments + " configurations in " + wallNanos / 1_000_000 + "ms" +
+                    " (critical path: " + criticalPathNanos / 1_000_000 + "ms" +
+                    ", total: " + totalNanos / 1_000_000 + "ms)";
+        }
+    }
+}
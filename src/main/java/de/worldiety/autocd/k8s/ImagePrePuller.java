@@ -0,0 +1,266 @@
+package de.worldiety.autocd.k8s;
+
+import com.google.gson.JsonSyntaxException;
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.apis.AppsV1Api;
+import io.kubernetes.client.apis.CoreV1Api;
+import io.kubernetes.client.custom.Quantity;
+import io.kubernetes.client.models.V1ContainerBuilder;
+import io.kubernetes.client.models.V1ContainerStatus;
+import io.kubernetes.client.models.V1DaemonSet;
+import io.kubernetes.client.models.V1DaemonSetSpec;
+import io.kubernetes.client.models.V1LabelSelector;
+import io.kubernetes.client.models.V1LocalObjectReference;
+import io.kubernetes.client.models.V1ObjectMeta;
+import io.kubernetes.client.models.V1Pod;
+import io.kubernetes.client.models.V1PodSpec;
+import io.kubernetes.client.models.V1PodTemplateSpec;
+import io.kubernetes.client.models.V1ResourceRequirementsBuilder;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pulls an image onto the nodes before the workload using it is updated, so the rollout only has to swap the
+ * containers instead of waiting for the first pod on every node to download the image.
+ * <p>
+ * The image is pulled by a short-lived DaemonSet: its pods run the image as init container that exits right away and
+ * then only keep a pause container. Without a node selector or tolerations the DaemonSet covers the same nodes the
+ * workload can be scheduled on. An image is pulled on a node once its init container got past the image pull.
+ */
+public class ImagePrePuller {
+    private static final Logger log = LoggerFactory.getLogger(ImagePrePuller.class);
+    private static final int HTTP_CONFLICT = 409;
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final String LABEL = "autocd.worldiety.de/prepull";
+    //Pods of the previous run may still be terminating, only the pods of this run must be counted
+    private static final String RUN_LABEL = "autocd.worldiety.de/prepull-run";
+    private static final String PAUSE_IMAGE = "k8s.gcr.io/pause:3.1";
+    //Waiting reasons of a container whose image is not on the node yet, every other state means it has been pulled
+    private static final Set<String> PULLING = Set.of("ContainerCreating", "PodInitializing", "ErrImagePull", "ImagePullBackOff");
+    private static final Set<String> PULL_FAILED = Set.of("ErrImagePull", "ImagePullBackOff");
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(5);
+    private final CoreV1Api api;
+    private final AppsV1Api appsV1Api;
+    private final DeletionAwaiter deletionAwaiter;
+    private final Duration timeout;
+
+    /**
+     * @param deletionAwaiter waits for a DaemonSet left over by an aborted run
+     * @param timeout         the time to wait for the pulls, the rollout starts anyway once it has passed
+     */
+    public ImagePrePuller(@NotNull CoreV1Api api, @NotNull AppsV1Api appsV1Api, @NotNull DeletionAwaiter deletionAwaiter,
+                          @NotNull Duration timeout) {
+        this.api = api;
+        this.appsV1Api = appsV1Api;
+        this.deletionAwaiter = deletionAwaiter;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Blocks until the image is on every node or the timeout has passed. The DaemonSet is deleted afterwards without
+     * waiting for its pods. Failures are logged, a missed pre-pull only makes the rollout slower.
+     *
+     * @param meta        namespace and name of the DaemonSet
+     * @param image       the image to pull
+     * @param pullPolicy  the pull policy of the workload
+     * @param pullSecrets the image pull secrets of the workload
+     * @return true if the image has been pulled onto all nodes
+     */
+    public boolean prePull(@NotNull V1ObjectMeta meta, @NotNull String image, String pullPolicy,
+                           List<V1LocalObjectReference> pullSecrets) {
+        var labels = Map.of(LABEL, meta.getName(), RUN_LABEL, UUID.randomUUID().toString());
+        var daemonSet = getDaemonSet(meta, labels, image, pullPolicy, pullSecrets);
+        var start = System.nanoTime();
+        try {
+            if (!create(daemonSet)) {
+                return false;
+            }
+            var pulled = await(meta, labels);
+            var millis = (System.nanoTime() - start) / 1_000_000;
+            if (pulled) {
+                log.info("Pulled " + image + " onto all nodes in " + millis + "ms");
+            } else {
+                log.warn("Pulling " + image + " onto all nodes did not finish within " + timeout.toSeconds() + "s, rolling out anyway");
+            }
+            return pulled;
+        } catch (ApiException e) {
+            log.warn("Could not pre-pull " + image + ": " + e.getResponseBody(), e);
+            return false;
+        } finally {
+            delete(meta);
+        }
+    }
+
+    @NotNull
+    private V1DaemonSet getDaemonSet(@NotNull V1ObjectMeta meta, @NotNull Map<String, String> labels, @NotNull String image,
+                                     String pullPolicy, List<V1LocalObjectReference> pullSecrets) {
+        var resources = new V1ResourceRequirementsBuilder()
+                .withRequests(Map.of("cpu", new Quantity("1m"), "memory", new Quantity("8Mi")))
+                .build();
+
+        var podSpec = new V1PodSpec();
+        podSpec.setInitContainers(List.of(new V1ContainerBuilder()
+                .withName("prepull")
+                .withImage(image)
+                .withImagePullPolicy(pullPolicy)
+                .withCommand("sh", "-c", "true")
+                .withResources(resources)
+                .build()));
+        podSpec.setContainers(List.of(new V1ContainerBuilder()
+                .withName("pause")
+                .withImage(PAUSE_IMAGE)
+                .withResources(resources)
+                .build()));
+        podSpec.setImagePullSecrets(pullSecrets);
+        podSpec.setTerminationGracePeriodSeconds(0L);
+
+        var templateMeta = new V1ObjectMeta();
+        templateMeta.setLabels(labels);
+        var template = new V1PodTemplateSpec();
+        template.setMetadata(templateMeta);
+        template.setSpec(podSpec);
+
+        var selector = new V1LabelSelector();
+        selector.setMatchLabels(labels);
+        var spec = new V1DaemonSetSpec();
+        spec.setSelector(selector);
+        spec.setTemplate(template);
+
+        var daemonSetMeta = new V1ObjectMeta();
+        daemonSetMeta.setName(meta.getName());
+        daemonSetMeta.setNamespace(meta.getNamespace());
+        daemonSetMeta.setLabels(labels);
+
+        var daemonSet = new V1DaemonSet();
+        daemonSet.setApiVersion("apps/v1");
+        daemonSet.setKind("DaemonSet");
+        daemonSet.setMetadata(daemonSetMeta);
+        daemonSet.setSpec(spec);
+        return daemonSet;
+    }
+
+    /**
+     * @return false if a DaemonSet of the same name could not be replaced
+     */
+    private boolean create(@NotNull V1DaemonSet daemonSet) throws ApiException {
+        var meta = daemonSet.getMetadata();
+        try {
+            appsV1Api.createNamespacedDaemonSet(meta.getNamespace(), daemonSet, "true", null, null);
+            return true;
+        } catch (ApiException e) {
+            if (e.getCode() != HTTP_CONFLICT) {
+                throw e;
+            }
+
+            //Left over by a run that has been aborted, it may pull an older image
+            log.info("Replacing the pre-pull daemonset " + meta.getName());
+            delete(meta);
+            if (!deletionAwaiter.await("daemonset", meta.getName(), () -> read(meta))) {
+                log.warn("Timed out waiting for the deletion of the pre-pull daemonset " + meta.getName());
+                return false;
+            }
+            appsV1Api.createNamespacedDaemonSet(meta.getNamespace(), daemonSet, "true", null, null);
+            return true;
+        }
+    }
+
+    private V1DaemonSet read(@NotNull V1ObjectMeta meta) throws ApiException {
+        return appsV1Api.readNamespacedDaemonSet(meta.getName(), meta.getNamespace(), null, null, null);
+    }
+
+    /**
+     * Polls the DaemonSet and its pods with an exponential backoff.
+     *
+     * @return true if every scheduled pod pulled the image, false if the timeout passed first
+     */
+    private boolean await(@NotNull V1ObjectMeta meta, @NotNull Map<String, String> labels) throws ApiException {
+        var selector = labels.entrySet().stream()
+                .map(it -> it.getKey() + "=" + it.getValue())
+                .collect(Collectors.joining(","));
+        var end = System.nanoTime() + timeout.toNanos();
+        var backoff = INITIAL_BACKOFF_MILLIS;
+        var reported = -1;
+
+        try {
+            while (System.nanoTime() < end) {
+                var status = read(meta).getStatus();
+                //The status is empty until the controller has seen the DaemonSet
+                var desired = status == null || status.getDesiredNumberScheduled() == null ? -1 : status.getDesiredNumberScheduled();
+                var pods = api.listNamespacedPod(meta.getNamespace(), "true", null, null, selector,
+                        null, null, null, null).getItems();
+                var pulled = (int) pods.stream().filter(ImagePrePuller::isPulled).count();
+
+                if (desired >= 0 && pulled >= desired) {
+                    return true;
+                }
+                if (desired >= 0 && pulled != reported) {
+                    log.info("Pre-pulled the image onto " + pulled + " of " + desired + " nodes");
+                    reported = pulled;
+                }
+                pods.forEach(ImagePrePuller::logPullFailure);
+
+                Thread.sleep(Math.min(backoff, Math.max(1, (end - System.nanoTime()) / 1_000_000)));
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private static boolean isPulled(@NotNull V1Pod pod) {
+        var status = getPrePullStatus(pod);
+        if (status == null || status.getState() == null) {
+            return false;
+        }
+
+        //An image without a shell fails to start, but it has been pulled all the same
+        var waiting = status.getState().getWaiting();
+        return waiting == null || waiting.getReason() != null && !PULLING.contains(waiting.getReason());
+    }
+
+    private static void logPullFailure(@NotNull V1Pod pod) {
+        var status = getPrePullStatus(pod);
+        if (status == null || status.getState() == null || status.getState().getWaiting() == null) {
+            return;
+        }
+
+        var waiting = status.getState().getWaiting();
+        if (PULL_FAILED.contains(waiting.getReason())) {
+            log.warn("Pre-pull on node " + pod.getSpec().getNodeName() + " failed: " + waiting.getMessage());
+        }
+    }
+
+    private static V1ContainerStatus getPrePullStatus(@NotNull V1Pod pod) {
+        if (pod.getStatus() == null || pod.getStatus().getInitContainerStatuses() == null) {
+            return null;
+        }
+
+        return pod.getStatus().getInitContainerStatuses().stream()
+                .filter(it -> "prepull".equals(it.getName()))
+                .findFirst()
+                .orElse(null);
+    }
+
+    private void delete(@NotNull V1ObjectMeta meta) {
+        try {
+            //Background propagation, the pods only hold the pause container and may go away after the rollout
+            appsV1Api.deleteNamespacedDaemonSet(meta.getName(), meta.getNamespace(), "true", null, null, 0, null, "Background");
+        } catch (ApiException e) {
+            if (e.getCode() != HTTP_NOT_FOUND) {
+                log.warn("Could not delete the pre-pull daemonset " + meta.getName(), e);
+            }
+        } catch (JsonSyntaxException ignored) {
+            //The api returns the deleted object instead of a status: https://github.com/kubernetes-client/java/issues/86
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package de.worldiety.autocd.k8s;
+
+import io.kubernetes.client.informer.ResourceEventHandler;
+import io.kubernetes.client.models.ExtensionsV1beta1Ingress;
+import io.kubernetes.client.models.ExtensionsV1beta1IngressRule;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Maps every host that is served by an ingress of the cluster to the ingresses serving it, so host conflicts can be
+ * checked without going through all ingresses of all namespaces.
+ */
+public class IngressHostIndex implements ResourceEventHandler<ExtensionsV1beta1Ingress> {
+    private final Map<String, Set<IngressRef>> hosts = new ConcurrentHashMap<>();
+
+    @NotNull
+    public static IngressHostIndex of(@NotNull List<ExtensionsV1beta1Ingress> ingresses) {
+        var index = new IngressHostIndex();
+        ingresses.forEach(index::onAdd);
+        return index;
+    }
+
+    /**
+     * @param host the host to look up
+     * @return all ingresses that have a rule for the host
+     */
+    @NotNull
+    public Set<IngressRef> getIngresses(String host) {
+        return Set.copyOf(hosts.getOrDefault(host, Set.of()));
+    }
+
+    /**
+     * @param host      the host to look up
+     * @param namespace the own namespace
+     * @return true if an ingress outside of the namespace already serves the host
+     */
+    public boolean isClaimedByOtherNamespace(String host, String namespace) {
+        return getIngresses(host).stream().anyMatch(it -> !it.getNamespace().equals(namespace));
+    }
+
+    @Override
+    public void onAdd(ExtensionsV1beta1Ingress ingress) {
+        var ref = IngressRef.of(ingress);
+        getHosts(ingress).forEach(host -> hosts.computeIfAbsent(host, it -> ConcurrentHashMap.newKeySet()).add(ref));
+    }
+
+    @Override
+    public void onUpdate(ExtensionsV1beta1Ingress oldIngress, ExtensionsV1beta1Ingress newIngress) {
+        onDelete(oldIngress, false);
+        onAdd(newIngress);
+    }
+
+    @Override
+    public void onDelete(ExtensionsV1beta1Ingress ingress, boolean deletedFinalStateUnknown) {
+        var ref = IngressRef.of(ingress);
+        getHosts(ingress).forEach(host -> hosts.computeIfPresent(host, (it, refs) -> {
+            refs.remove(ref);
+            return refs.isEmpty() ? null : refs;
+        }));
+    }
+
+    @NotNull
+    private List<String> getHosts(@NotNull ExtensionsV1beta1Ingress ingress) {
+        if (ingress.getSpec() == null || ingress.getSpec().getRules() == null) {
+            return List.of();
+        }
+
+        return ingress.getSpec().getRules().stream()
+                .filter(rule -> rule != null && rule.getHost() != null)
+                .map(ExtensionsV1beta1IngressRule::getHost)
+                .collect(Collectors.toList());
+    }
+
+    public static class IngressRef {
+        private final String namespace;
+        private final String name;
+
+        public IngressRef(String namespace, String name) {
+            this.namespace = namespace;
+            this.name = name;
+        }
+
+        @NotNull
+        @Contract("_ -> new")
+        private static IngressRef of(@NotNull ExtensionsV1beta1Ingress ingress) {
+            return new IngressRef(ingress.getMetadata().getNamespace(), ingress.getMetadata().getName());
+        }
+
+        public String getNamespace() {
+            return namespace;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            IngressRef that = (IngressRef) o;
+            return Objects.equals(namespace, that.namespace) &&
+                    Objects.equals(name, that.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(namespace, name);
+        }
+    }
+}
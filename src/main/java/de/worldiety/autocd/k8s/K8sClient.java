@@ -1,15 +1,12 @@
 package de.worldiety.autocd.k8s;
 
-import static de.worldiety.autocd.util.Util.hash;
-import static de.worldiety.autocd.util.Util.isLocal;
-
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import com.squareup.okhttp.Call;
 import de.worldiety.autocd.docker.DockerfileHandler;
 import de.worldiety.autocd.persistence.AutoCD;
 import de.worldiety.autocd.persistence.Volume;
 import de.worldiety.autocd.util.Environment;
-import de.worldiety.autocd.util.FileType;
 import de.worldiety.autocd.util.Util;
 import io.kubernetes.client.ApiException;
 import io.kubernetes.client.apis.AppsV1Api;
@@ -42,7 +39,7 @@ import io.kubernetes.client.models.V1PersistentVolumeClaim;
 import io.kubernetes.client.models.V1PersistentVolumeClaimSpec;
 import io.kubernetes.client.models.V1PersistentVolumeClaimSpecBuilder;
 import io.kubernetes.client.models.V1PersistentVolumeClaimVolumeSource;
-import io.kubernetes.client.models.V1PersistentVolumeList;
+import io.kubernetes.client.models.V1Pod;
 import io.kubernetes.client.models.V1PodSpec;
 import io.kubernetes.client.models.V1PodTemplateSpec;
 import io.kubernetes.client.models.V1ResourceRequirementsBuilder;
@@ -55,10 +52,16 @@ import io.kubernetes.client.models.V1StatefulSetSpec;
 import io.kubernetes.client.models.V1Volume;
 import io.kubernetes.client.models.V1VolumeMount;
 import io.kubernetes.client.models.V1VolumeMountBuilder;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import org.jetbrains.annotations.Contract;
@@ -68,23 +71,64 @@ import org.slf4j.LoggerFactory;
 
 public class K8sClient {
     private static final Logger log = LoggerFactory.getLogger(K8sClient.class);
+    private static final int HTTP_NOT_FOUND = 404;
     //This needs to be set on delete Operations that should propagate to the related objects
     private static final String FOREGROUND = "Foreground";
+    //Changes whenever a new image has been built so the pods are rolled even though the tag stays the same
+    private static final String IMAGE_ID_ANNOTATION = "autocd.worldiety.de/image-id";
     private final CoreV1Api api;
     private final DockerfileHandler finder;
-    private final String hyphenedBuildType;
-    private final String rawBuildType;
+    private final K8sContext context;
+    private final AppsV1Api appsV1Api;
+    private final ExtensionsV1beta1Api extensionsV1beta1Api;
+    private final ExtensionsV1beta1Api mergePatchExtensionsV1beta1Api;
     private final CoreV1Api patchApi;
     private final String dockerCredentials;
+    private final CoreV1Api mergePatchApi;
+    private final DeployMode deployMode;
+    //AutoCD does not override equals, so the configurations are compared by identity
+    private final Map<AutoCD, ResourceNames> resourceNames = new ConcurrentHashMap<>();
+    //Protecting, deleting and reclaiming volumes looks at all volumes of the cluster and the claims of the namespace,
+    //so concurrent deployments do it one after another
+    private final Object volumeLock = new Object();
+    private volatile ClusterSnapshot snapshot;
+    private IngressHostIndex ingressHostIndex;
+    //Creates that hit a terminating object wait for it here instead of on the http threads
+    private final ExecutorService retryExecutor = Executors.newCachedThreadPool(Util.daemonThreadFactory("autocd-k8s-retry"));
+    private final DeletionAwaiter deletionAwaiter = new DeletionAwaiter(Duration.ofSeconds(
+            Util.getEnvInt(Environment.AUTOCD_DELETION_TIMEOUT, (int) DeletionAwaiter.DEFAULT_DEADLINE.toSeconds())));
+    //Null unless the images are pulled onto the nodes before the rollout
+    private final ImagePrePuller prePuller;
 
     @Contract(pure = true)
     public K8sClient(CoreV1Api api, DockerfileHandler finder, String hyphenedBuildType, CoreV1Api patchApi, String dockerCredentials) {
+        this(K8sContext.fromEnvironment(hyphenedBuildType), api, finder, patchApi, dockerCredentials, patchApi, DeployMode.RECREATE);
+    }
+
+    /**
+     * The client does not use any global state and can be shared by concurrent deployments. Only the handling of the
+     * volumes is serialized between them.
+     *
+     * @param context       the names the objects are derived from
+     * @param mergePatchApi api whose client sends patches as JSON merge patch, used to update objects in place
+     * @param deployMode    whether deployments are recreated or reconciled
+     */
+    public K8sClient(K8sContext context, @NotNull CoreV1Api api, DockerfileHandler finder, CoreV1Api patchApi, String dockerCredentials,
+                     @NotNull CoreV1Api mergePatchApi, DeployMode deployMode) {
+        this.context = context;
         this.api = api;
         this.finder = finder;
-        this.hyphenedBuildType = "-" + hyphenedBuildType;
-        this.rawBuildType = hyphenedBuildType;
         this.patchApi = patchApi;
         this.dockerCredentials = dockerCredentials;
+        this.mergePatchApi = mergePatchApi;
+        this.deployMode = deployMode;
+        this.appsV1Api = new AppsV1Api(api.getApiClient());
+        this.extensionsV1beta1Api = new ExtensionsV1beta1Api(api.getApiClient());
+        this.mergePatchExtensionsV1beta1Api = new ExtensionsV1beta1Api(mergePatchApi.getApiClient());
+        this.prePuller = Util.getEnvBoolean(Environment.AUTOCD_PREPULL, false)
+                ? new ImagePrePuller(api, appsV1Api, deletionAwaiter, Duration.ofSeconds(
+                Util.getEnvInt(Environment.AUTOCD_PREPULL_TIMEOUT, (int) ImagePrePuller.DEFAULT_TIMEOUT.toSeconds())))
+                : null;
     }
 
     /**
@@ -93,63 +137,125 @@ public class K8sClient {
      * @param autoCD configuration
      */
     public void deployToK8s(AutoCD autoCD) {
-        if (autoCD.getReplicas() > 1 && autoCD.getVolumes().size() != 0) {
-            this.removeDeploymentFromK8s(autoCD);
+        prePull(autoCD);
+        if (isStateful(autoCD)) {
+            //Service and ingress are kept, deployStateful replaces them only if they changed
+            var deletions = new ArrayList<CompletableFuture<Void>>();
+            deletions.add(deleteDeploymentAsync(getDeployment(autoCD)));
+            synchronized (volumeLock) {
+                deletions.addAll(deleteClaimsAsync(getPersistentVolumeClaims(autoCD)));
+                AsyncCall.await(deletions);
+            }
             log.info("Deploying statefulset");
             deployStateful(autoCD);
+        } else if (deployMode == DeployMode.RECONCILE) {
+            log.info("Reconciling deployment");
+            reconcile(autoCD);
         } else {
             log.info("Deploying deployment");
             deploy(autoCD);
         }
     }
 
+    private boolean isStateful(@NotNull AutoCD autoCD) {
+        return autoCD.getReplicas() > 1 && autoCD.getVolumes().size() != 0;
+    }
+
+    /**
+     * Pulls the image of the workload onto the nodes before it is rolled out, if enabled. Nothing is pulled if the
+     * workload does not change.
+     *
+     * @param autoCD configuration
+     */
+    private void prePull(@NotNull AutoCD autoCD) {
+        if (prePuller == null || autoCD.getRegistryImagePath() == null) {
+            return;
+        }
+
+        V1PodSpec podSpec;
+        if (isStateful(autoCD)) {
+            var set = getStatefulSet(autoCD);
+            if (isUnchanged(set)) {
+                return;
+            }
+            podSpec = set.getSpec().getTemplate().getSpec();
+        } else {
+            var deployment = getDeployment(autoCD);
+            if (isUnchanged(deployment)) {
+                return;
+            }
+            podSpec = deployment.getSpec().getTemplate().getSpec();
+        }
+
+        //The pull secret has to exist before the pods of the daemonset are scheduled
+        createNamespace(getNamespace());
+        addSecret();
+        var container = podSpec.getContainers().get(0);
+        log.info("Pre-pulling " + container.getImage());
+        prePuller.prePull(getNamedNamespacedMeta("prepull-" + names(autoCD).getStatefulSetName()), container.getImage(),
+                container.getImagePullPolicy(), podSpec.getImagePullSecrets());
+    }
+
     private void deployStateful(AutoCD autoCD) {
-        var ingress = getIngress(autoCD);
-        ingress.forEach(this::deleteIngress);
+        var ingress = getIngress(autoCD).stream()
+                .filter(it -> !isUnchanged(it))
+                .collect(Collectors.toList());
+        var deletions = ingress.stream()
+                .map(this::deleteIngressAsync)
+                .collect(Collectors.toList());
         var service = getService(autoCD);
-        deleteService(service);
+        var serviceChanged = !isUnchanged(service);
+        if (serviceChanged) {
+            deletions.add(deleteServiceAsync(service));
+        }
         var set = getStatefulSet(autoCD);
-        deleteStatefulSet(set);
+        var setChanged = !isUnchanged(set);
+        if (setChanged) {
+            deletions.add(deleteStatefulSetAsync(set));
+        }
+        AsyncCall.await(deletions);
         var nameSpace = getNamespace();
 
         createNamespace(nameSpace);
         addSecret();
-        createStatefulSet(set);
-        createService(service);
-        ingress.forEach(this::createIngress);
+        var creations = new ArrayList<CompletableFuture<Void>>();
+        if (setChanged) {
+            creations.add(createStatefulSetAsync(set));
+        }
+        if (serviceChanged) {
+            creations.add(createServiceAsync(service));
+        }
+        ingress.forEach(it -> creations.add(createIngressAsync(it)));
+        AsyncCall.await(creations);
     }
 
     private void createStatefulSet(V1StatefulSet set) {
-        var appsV1Api = getAppsV1ApiClient();
         try {
             appsV1Api.createNamespacedStatefulSet(set.getMetadata().getNamespace(), set, "true", null, null);
         } catch (ApiException e) {
-            retry(set, this::createStatefulSet, e);
+            retry(set, this::createStatefulSet, e, () -> readStatefulSet(set));
         }
     }
 
-    private AppsV1Api getAppsV1ApiClient() {
-        var appsV1Api = new AppsV1Api();
-        appsV1Api.setApiClient(api.getApiClient());
-        return appsV1Api;
+    private CompletableFuture<Void> createStatefulSetAsync(V1StatefulSet set) {
+        return createAsync(set, () -> appsV1Api
+                        .createNamespacedStatefulSetCall(set.getMetadata().getNamespace(), set, "true", null, null, null, null),
+                this::createStatefulSet, () -> readStatefulSet(set));
     }
 
-    private void deleteStatefulSet(V1StatefulSet set) {
-        var appsV1Api = new AppsV1Api();
-        appsV1Api.setApiClient(api.getApiClient());
-        try {
-            appsV1Api.deleteNamespacedStatefulSet(set.getMetadata().getName(), set.getMetadata().getNamespace(), "true", null, null, null, null, FOREGROUND);
-        } catch (ApiException e) {
-            log.warn("Could not delete deployment", e);
-        } catch (JsonSyntaxException e) {
-            ignoreGoogleParsingError(e);
-        }
+    private V1StatefulSet readStatefulSet(@NotNull V1StatefulSet set) throws ApiException {
+        return appsV1Api.readNamespacedStatefulSet(set.getMetadata().getName(), set.getMetadata().getNamespace(), null, null, null);
     }
 
-    private V1StatefulSet getStatefulSet(AutoCD autoCD) {
+    private CompletableFuture<Void> deleteStatefulSetAsync(@NotNull V1StatefulSet set) {
+        var meta = set.getMetadata();
+        return deleteAsync("statefulset", meta.getName(), () -> appsV1Api
+                .deleteNamespacedStatefulSetCall(meta.getName(), meta.getNamespace(), "true", null, null, null, null, FOREGROUND, null, null));
+    }
+
+    V1StatefulSet getStatefulSet(AutoCD autoCD) {
         var meta = getNamespacedMeta();
-        var projName = System.getenv(Environment.CI_PROJECT_NAME.toString());
-        meta.setName(Util.hash(getNamespaceString() + autoCD.getIdentifierRegistryImagePath() + projName).substring(0, 20));
+        meta.setName(names(autoCD).getStatefulSetName());
         var labels = Map.of("k8s-app", getK8sApp(autoCD), "serviceName", getCleanServiceNameLabel(autoCD));
         meta.setLabels(labels);
 
@@ -168,6 +274,9 @@ public class K8sClient {
                 "k8s-app", getK8sApp(autoCD),
                 "name", getName(),
                 "serviceName", getCleanServiceNameLabel(autoCD)));
+        if (autoCD.getImageId() != null) {
+            templateMeta.setAnnotations(Map.of(IMAGE_ID_ANNOTATION, autoCD.getImageId()));
+        }
         template.setMetadata(templateMeta);
 
         var podSpec = new V1PodSpec();
@@ -224,6 +333,7 @@ public class K8sClient {
         dep.setSpec(spec);
         dep.setKind("StatefulSet");
         dep.setApiVersion(getApiVersionAppsV1());
+        ManifestHash.stamp(dep, meta, api.getApiClient().getJSON());
 
         return dep;
     }
@@ -231,13 +341,7 @@ public class K8sClient {
     @NotNull
     private V1ContainerPort getV1ContainerPort(AutoCD autoCD) {
         var port = new V1ContainerPort();
-
-        if (finder.getFileType().equals(FileType.VUE)) {
-            port.setContainerPort(autoCD.getContainerPort());
-        } else {
-            port.setContainerPort(autoCD.getContainerPort());
-        }
-
+        port.setContainerPort(autoCD.getContainerPort());
         port.setName("http");
         return port;
     }
@@ -255,31 +359,228 @@ public class K8sClient {
 
     @SuppressWarnings("DuplicatedCode")
     private void deploy(AutoCD autoCD) {
+        //Ingresses of a service that is no longer publicly accessible have to be removed even if unchanged
+        var ingress = getIngress(autoCD).stream()
+                .filter(it -> !autoCD.isPubliclyAccessible() || !isUnchanged(it))
+                .collect(Collectors.toList());
+        var deletions = ingress.stream()
+                .map(this::deleteIngressAsync)
+                .collect(Collectors.toList());
+        var service = getService(autoCD);
+        var serviceChanged = !isUnchanged(service);
+        if (serviceChanged) {
+            deletions.add(deleteServiceAsync(service));
+        }
+        var claims = getPersistentVolumeClaims(autoCD);
+        var deployment = getDeployment(autoCD);
+        //Claims can only be recreated together with the deployment using them
+        var workloadChanged = !isUnchanged(deployment) || !claims.stream().allMatch(this::isUnchanged);
+        var nameSpace = getNamespace();
+        if (workloadChanged) {
+            synchronized (volumeLock) {
+                var pvs = protectPVS(autoCD, claims);
+                log.info(pvs.toString());
+                unprotectPVS(autoCD);
+                var workloadDeletions = new ArrayList<CompletableFuture<Void>>();
+                workloadDeletions.add(deleteDeploymentAsync(deployment));
+                workloadDeletions.addAll(deleteClaimsAsync(claims));
+                AsyncCall.await(workloadDeletions);
+                cleanupPVC(nameSpace.getMetadata().getName(), claims);
+
+                createNamespace(nameSpace);
+                addSecret();
+                //The claims have to exist before the deployment, the volumes can only be reclaimed once they are bound
+                var claimCreations = claims.stream()
+                        .map(this::createClaimAsync)
+                        .toArray(CompletableFuture[]::new);
+                AsyncCall.await(List.of(CompletableFuture.allOf(claimCreations)
+                        .thenCompose(it -> createDeploymentAsync(deployment))
+                        .thenCompose(it -> reclaimPVSAsync(pvs))));
+            }
+        }
+        AsyncCall.await(deletions);
+
+        if (!workloadChanged) {
+            createNamespace(nameSpace);
+            addSecret();
+        }
+        var creations = new ArrayList<CompletableFuture<Void>>();
+        if (serviceChanged) {
+            creations.add(createServiceAsync(service));
+        }
+
+        if (autoCD.isPubliclyAccessible()) {
+            ingress.forEach(it -> creations.add(createIngressAsync(it)));
+        }
+        AsyncCall.await(creations);
+    }
+
+    /**
+     * Updates the objects of the given configuration in place instead of deleting them first. Objects are only
+     * created if they are missing, an updated deployment replaces its pods with a rolling update so the service stays
+     * available.
+     *
+     * @param autoCD configuration
+     */
+    private void reconcile(AutoCD autoCD) {
         var ingress = getIngress(autoCD);
-        ingress.forEach(this::deleteIngress);
         var service = getService(autoCD);
-        deleteService(service);
         var claims = getPersistentVolumeClaims(autoCD);
-        var pvs = protectPVS(autoCD, claims);
-        log.info(pvs.toString());
-        unprotectPVS(autoCD);
         var deployment = getDeployment(autoCD);
-        deleteDeployment(deployment);
-        deleteClaims(claims);
         var nameSpace = getNamespace();
-        cleanupPVC(nameSpace.getMetadata().getName(), claims);
+        synchronized (volumeLock) {
+            var pvs = protectPVS(autoCD, claims);
+            log.info(pvs.toString());
+            unprotectPVS(autoCD);
+            cleanupPVC(nameSpace.getMetadata().getName(), claims);
+
+            createNamespace(nameSpace);
+            addSecret();
+            var createdClaims = claims.stream()
+                    .filter(this::createClaimIfMissing)
+                    .collect(Collectors.toList());
 
-        createNamespace(nameSpace);
-        addSecret();
-        createClaims(claims);
-        createDeployment(deployment);
-        createService(service);
+            //Only volumes whose claim has been recreated are still bound to the old claim
+            reclaimPVSAsync(createdClaims.stream()
+                    .map(claim -> claim.getSpec().getVolumeName())
+                    .filter(pvs::contains)
+                    .collect(Collectors.toList())).join();
+        }
 
-        reclaimPVS(pvs);
+        if (!isUnchanged(deployment)) {
+            applyDeployment(deployment);
+        }
+        if (!isUnchanged(service)) {
+            applyService(service);
+        }
 
         if (autoCD.isPubliclyAccessible()) {
-            ingress.forEach(this::createIngress);
+            ingress.stream()
+                    .filter(it -> !isUnchanged(it))
+                    .forEach(this::applyIngress);
+        } else {
+            AsyncCall.await(ingress.stream()
+                    .map(this::deleteIngressAsync)
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    private boolean createClaimIfMissing(@NotNull V1PersistentVolumeClaim claim) {
+        try {
+            readClaim(claim);
+            return false;
+        } catch (ApiException e) {
+            if (e.getCode() != HTTP_NOT_FOUND) {
+                log.error("Could not read claim", e);
+                return false;
+            }
+        }
+
+        applyClaim(claim);
+        return true;
+    }
+
+    private void applyDeployment(@NotNull ExtensionsV1beta1Deployment deployment) {
+        applyOrCreate(deployment, "deployment", patch -> mergePatchExtensionsV1beta1Api.patchNamespacedDeployment(
+                deployment.getMetadata().getName(), deployment.getMetadata().getNamespace(), patch, null, null, null, null),
+                this::createDeployment);
+    }
+
+    private void applyService(@NotNull V1Service service) {
+        applyOrCreate(service, "service", patch -> mergePatchApi.patchNamespacedService(
+                service.getMetadata().getName(), service.getMetadata().getNamespace(), patch, null, null, null, null),
+                this::createService);
+    }
+
+    private void applyIngress(@NotNull ExtensionsV1beta1Ingress ingress) {
+        applyOrCreate(ingress, "ingress", patch -> mergePatchExtensionsV1beta1Api.patchNamespacedIngress(
+                ingress.getMetadata().getName(), ingress.getMetadata().getNamespace(), patch, null, null, null, null),
+                this::createIngress);
+    }
+
+    private boolean isUnchanged(@NotNull ExtensionsV1beta1Deployment deployment) {
+        return isUnchanged("deployment", deployment.getMetadata(), () -> readDeployment(deployment).getMetadata());
+    }
+
+    private boolean isUnchanged(@NotNull V1StatefulSet set) {
+        return isUnchanged("statefulset", set.getMetadata(), () -> readStatefulSet(set).getMetadata());
+    }
+
+    private boolean isUnchanged(@NotNull V1Service service) {
+        return isUnchanged("service", service.getMetadata(), () -> readService(service).getMetadata());
+    }
+
+    private boolean isUnchanged(@NotNull ExtensionsV1beta1Ingress ingress) {
+        return isUnchanged("ingress", ingress.getMetadata(), () -> readIngress(ingress).getMetadata());
+    }
+
+    private boolean isUnchanged(@NotNull V1PersistentVolumeClaim claim) {
+        return isUnchanged("claim", claim.getMetadata(), () -> readClaim(claim).getMetadata());
+    }
+
+    /**
+     * Compares the manifest hash of the desired object with the one stored on the live object. Objects that are
+     * missing or cannot be read count as changed.
+     *
+     * @param kind    the kind used for logging
+     * @param desired the metadata of the rendered object
+     * @param live    reads the metadata of the live object
+     * @return true if the live object has been created from an identical manifest
+     */
+    private boolean isUnchanged(String kind, V1ObjectMeta desired, @NotNull ApiCall<V1ObjectMeta> live) {
+        var hash = ManifestHash.of(desired);
+        if (hash == null) {
+            return false;
         }
+
+        try {
+            if (hash.equals(ManifestHash.of(live.call()))) {
+                log.info("The " + kind + " " + desired.getName() + " is unchanged, skipping");
+                return true;
+            }
+        } catch (ApiException e) {
+            if (e.getCode() != HTTP_NOT_FOUND) {
+                log.warn("Could not read " + kind + " " + desired.getName(), e);
+            }
+        } catch (JsonSyntaxException e) {
+            ignoreGoogleParsingError(e);
+        }
+
+        return false;
+    }
+
+    /**
+     * Sends the complete desired object as JSON merge patch. Unlike a strategic merge patch, lists like the
+     * containers, their environment variables or the service ports are replaced as a whole, so entries that have
+     * been removed from the configuration are removed from the cluster as well. Fields that are not set, e.g. the
+     * clusterIP of a service, keep their live value.
+     *
+     * @param obj    the desired object
+     * @param kind   the kind used for logging
+     * @param patch  the patch call for the object
+     * @param create the function that creates the object if it does not exist yet
+     * @param <T>    Any Kubernetes Object
+     */
+    private <T> void applyOrCreate(T obj, String kind, @NotNull PatchCall patch, Consumer<T> create) {
+        try {
+            patch.call(new V1Patch(mergePatchApi.getApiClient().getJSON().serialize(obj)));
+            log.info("Updated " + kind + " in place");
+        } catch (ApiException e) {
+            if (e.getCode() == HTTP_NOT_FOUND) {
+                create.accept(obj);
+                return;
+            }
+
+            log.error("Could not update " + kind, e);
+            log.info(e.getResponseBody());
+        } catch (JsonSyntaxException e) {
+            ignoreGoogleParsingError(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface PatchCall {
+        void call(V1Patch patch) throws ApiException;
     }
 
     /**
@@ -311,65 +612,100 @@ public class K8sClient {
         }
     }
 
-    private void createClaims(@NotNull List<V1PersistentVolumeClaim> claims) {
-        claims.forEach(this::applyClaim);
+    private List<CompletableFuture<Void>> deleteClaimsAsync(@NotNull List<V1PersistentVolumeClaim> claims) {
+        return claims.stream()
+                .map(this::deleteClaimAsync)
+                .collect(Collectors.toList());
     }
 
-    private void deleteClaims(@NotNull List<V1PersistentVolumeClaim> claims) {
-        claims.forEach(this::applyDeleteClaim);
+    private CompletableFuture<Void> deleteClaimAsync(@NotNull V1PersistentVolumeClaim claim) {
+        var meta = claim.getMetadata();
+        return deleteAsync("claim", meta.getName(), () -> api
+                .deleteNamespacedPersistentVolumeClaimCall(meta.getName(), meta.getNamespace(), null, null, null, null, null, FOREGROUND, null, null))
+                .thenRun(() -> log.info("Deleted claim: " + meta.getName()));
     }
 
-    private void applyDeleteClaim(@NotNull V1PersistentVolumeClaim claim) {
-        try {
-            api.deleteNamespacedPersistentVolumeClaim(claim.getMetadata().getName(), claim.getMetadata().getNamespace(), null, null, null, null, null, FOREGROUND);
-            log.info("Deleted claim: " + claim.getMetadata().getName());
-        } catch (ApiException e) {
-            retry(claim, this::applyDeleteClaim, e);
-        } catch (JsonSyntaxException e) {
-            ignoreGoogleParsingError(e);
-        }
+    private V1PersistentVolumeClaim readClaim(@NotNull V1PersistentVolumeClaim claim) throws ApiException {
+        return api.readNamespacedPersistentVolumeClaim(claim.getMetadata().getName(), claim.getMetadata().getNamespace(), null, null, null);
+    }
+
+    private CompletableFuture<Void> createClaimAsync(@NotNull V1PersistentVolumeClaim claim) {
+        return createAsync(claim, () -> api
+                        .createNamespacedPersistentVolumeClaimCall(claim.getMetadata().getNamespace(), claim, null, null, null, null, null),
+                this::applyClaim, () -> readClaim(claim));
     }
 
     private void applyClaim(V1PersistentVolumeClaim claim) {
         try {
             api.createNamespacedPersistentVolumeClaim(claim.getMetadata().getNamespace(), claim, null, null, null);
         } catch (ApiException e) {
-            retry(claim, this::applyClaim, e);
+            retry(claim, this::applyClaim, e, () -> readClaim(claim));
         } catch (JsonSyntaxException e) {
             ignoreGoogleParsingError(e);
         }
     }
 
-    private void deleteDeployment(@NotNull ExtensionsV1beta1Deployment deployment) {
-        ExtensionsV1beta1Api extensionsV1beta1Api = getExtensionsV1beta1Api();
-        try {
-            extensionsV1beta1Api.deleteNamespacedDeployment(deployment.getMetadata().getName(), deployment.getMetadata().getNamespace(), "true", null, null, null, null, FOREGROUND);
-        } catch (ApiException e) {
-            checkApiError(e, "deployment");
-        } catch (JsonSyntaxException e) {
-            ignoreGoogleParsingError(e);
-        }
+    private CompletableFuture<Void> deleteDeploymentAsync(@NotNull ExtensionsV1beta1Deployment deployment) {
+        var meta = deployment.getMetadata();
+        return deleteAsync("deployment", meta.getName(), () -> extensionsV1beta1Api
+                .deleteNamespacedDeploymentCall(meta.getName(), meta.getNamespace(), "true", null, null, null, null, FOREGROUND, null, null));
     }
 
-    private void deleteService(@NotNull V1Service service) {
-        try {
-            api.deleteNamespacedService(service.getMetadata().getName(), service.getMetadata().getNamespace(), null, null, null, null, null, FOREGROUND);
-        } catch (ApiException e) {
-            checkApiError(e, "service");
-        } catch (JsonSyntaxException e) {
-            ignoreGoogleParsingError(e);
-        }
+    private CompletableFuture<Void> deleteServiceAsync(@NotNull V1Service service) {
+        var meta = service.getMetadata();
+        return deleteAsync("service", meta.getName(), () -> api
+                .deleteNamespacedServiceCall(meta.getName(), meta.getNamespace(), null, null, null, null, null, FOREGROUND, null, null));
     }
 
-    private void deleteIngress(@NotNull ExtensionsV1beta1Ingress ingress) {
-        ExtensionsV1beta1Api extensionsV1beta1Api = getExtensionsV1beta1Api();
-        try {
-            extensionsV1beta1Api.deleteNamespacedIngress(ingress.getMetadata().getName(), ingress.getMetadata().getNamespace(), null, null, null, null, null, FOREGROUND);
-        } catch (ApiException e) {
-            checkApiError(e, "ingress");
-        } catch (JsonSyntaxException e) {
-            ignoreGoogleParsingError(e);
-        }
+    private CompletableFuture<Void> deleteIngressAsync(@NotNull ExtensionsV1beta1Ingress ingress) {
+        var meta = ingress.getMetadata();
+        return deleteAsync("ingress", meta.getName(), () -> extensionsV1beta1Api
+                .deleteNamespacedIngressCall(meta.getName(), meta.getNamespace(), null, null, null, null, null, FOREGROUND, null, null));
+    }
+
+    /**
+     * Sends a delete without waiting for it. Objects that do not exist are ignored, other failures are logged.
+     *
+     * @param kind the kind used for logging
+     * @param name the name of the object
+     * @param call builds the delete call
+     * @return a future that completes once the delete has been accepted
+     */
+    private CompletableFuture<Void> deleteAsync(String kind, String name, ApiCall<Call> call) {
+        return AsyncCall.ignoringBody(api.getApiClient(), call).handle((it, error) -> {
+            if (error != null) {
+                var e = AsyncCall.unwrap(error);
+                if (e == null || e.getCode() != HTTP_NOT_FOUND) {
+                    log.error("Could not delete " + kind + " " + name, error);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Sends a create without waiting for it. Failures are handed to retry on a separate thread, since waiting for a
+     * terminating object must not block the http threads. The created object is not needed, so the response body is
+     * not parsed and a body the client cannot parse does not leave the future incomplete.
+     *
+     * @param obj     the object to create
+     * @param call    builds the create call using one of the *Call api methods
+     * @param create  the blocking create used by retry
+     * @param read    reads the object, used by retry to wait for its deletion
+     * @param <T>     Any Kubernetes Object
+     * @return a future that completes once the object has been created
+     */
+    private <T> CompletableFuture<Void> createAsync(T obj, ApiCall<Call> call, Consumer<T> create, ApiCall<?> read) {
+        return AsyncCall.ignoringBody(api.getApiClient(), call).handleAsync((it, error) -> {
+            if (error != null) {
+                var e = AsyncCall.unwrap(error);
+                if (e == null) {
+                    throw new CompletionException(error);
+                }
+                retry(obj, create, e, read);
+            }
+            return null;
+        }, retryExecutor);
     }
 
     /**
@@ -396,16 +732,13 @@ public class K8sClient {
      *
      * @param pvs names of the volumes to patch
      */
-    private void reclaimPVS(@NotNull List<String> pvs) {
-        pvs.forEach(pv -> {
+    private CompletableFuture<Void> reclaimPVSAsync(@NotNull List<String> pvs) {
+        var patches = pvs.stream().map(pv -> {
             V1Patch reclaimPatch = new V1Patch("[{\"op\":\"remove\",\"path\":\"/spec/claimRef\"}]");
-            try {
-                patchApi.patchPersistentVolume(pv, reclaimPatch, null, null, null, null);
-            } catch (ApiException e) {
-                log.error("Could not reclaim PV", e);
-                throw new IllegalStateException(e);
-            }
-        });
+            return patchPVAsync(pv, reclaimPatch, "reclaim");
+        }).toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(patches);
     }
 
     /**
@@ -415,12 +748,13 @@ public class K8sClient {
      * @param autoCD configuration
      */
     private void unprotectPVS(AutoCD autoCD) {
-        V1PersistentVolumeList pvs;
+        List<V1PersistentVolume> pvs;
         try {
-            pvs = api.listPersistentVolume(null, null, null, null, null, null, null, null);
+            pvs = listPersistentVolumes();
             List<String> namesToProtect = getNamesToProtect(autoCD);
+            var patches = new ArrayList<CompletableFuture<Void>>();
 
-            pvs.getItems().forEach(pv -> {
+            pvs.forEach(pv -> {
                 if (pv.getSpec() != null && pv.getSpec().getClaimRef() != null) {
                     var name = pv.getSpec().getClaimRef().getName();
                     if (namesToProtect.contains(name)) {
@@ -429,10 +763,12 @@ public class K8sClient {
 
                     V1Patch deletePatch = new V1Patch("[{\"op\":\"replace\",\"path\":\"/spec/persistentVolumeReclaimPolicy\",\"value\":\"Delete\"}]");
 
-                    applyPatchToPVS(pv, deletePatch);
+                    patches.add(patchPVAsync(pv.getMetadata().getName(), deletePatch, "patch"));
                 }
             });
 
+            AsyncCall.await(patches);
+
         } catch (ApiException e) {
             log.error("Could not perform PV protection: ", e);
         }
@@ -447,13 +783,15 @@ public class K8sClient {
                 .collect(Collectors.toList());
     }
 
-    private void applyPatchToPVS(@NotNull V1PersistentVolume pv, V1Patch patch) {
-        try {
-            patchApi.patchPersistentVolume(pv.getMetadata().getName(), patch, null, null, null, null);
-        } catch (ApiException e) {
-            log.error("Could not patch PV", e);
-            throw new IllegalStateException(e);
-        }
+    private CompletableFuture<Void> patchPVAsync(String pv, V1Patch patch, String action) {
+        return AsyncCall.ignoringBody(patchApi.getApiClient(), () -> patchApi.patchPersistentVolumeCall(pv, patch, null, null, null, null, null, null))
+                .handle((it, error) -> {
+                    if (error != null) {
+                        log.error("Could not " + action + " PV", error);
+                        throw new IllegalStateException(error);
+                    }
+                    return null;
+                });
     }
 
     /**
@@ -468,13 +806,14 @@ public class K8sClient {
      */
     @NotNull
     private List<String> protectPVS(AutoCD autoCD, List<V1PersistentVolumeClaim> claims) {
-        V1PersistentVolumeList pvs;
+        List<V1PersistentVolume> pvs;
         var strings = new ArrayList<String>();
         try {
-            pvs = api.listPersistentVolume(null, null, null, null, null, null, null, null);
+            pvs = listPersistentVolumes();
             List<String> namesToProtect = getNamesToProtect(autoCD);
+            var patches = new ArrayList<CompletableFuture<Void>>();
 
-            pvs.getItems().forEach(pv -> {
+            pvs.forEach(pv -> {
                 if (pv.getSpec() != null && pv.getSpec().getClaimRef() != null) {
                     var name = pv.getSpec().getClaimRef().getName();
                     if (!namesToProtect.contains(name)) {
@@ -485,7 +824,7 @@ public class K8sClient {
 
                     V1Patch retainPatch = new V1Patch("[{\"op\":\"replace\",\"path\":\"/spec/persistentVolumeReclaimPolicy\",\"value\":\"Retain\"}]");
 
-                    applyPatchToPVS(pv, retainPatch);
+                    patches.add(patchPVAsync(pv.getMetadata().getName(), retainPatch, "patch"));
 
                     claims.stream().filter(it -> it.getMetadata().getName().equals(name)).forEach(it -> {
                         var spec = it.getSpec();
@@ -495,6 +834,8 @@ public class K8sClient {
 
             });
 
+            AsyncCall.await(patches);
+
         } catch (ApiException e) {
             log.error("Could not perform PV protection: ", e);
         }
@@ -511,64 +852,119 @@ public class K8sClient {
      */
     private void cleanupPVC(String namespace, List<V1PersistentVolumeClaim> claims) {
         try {
-            var pvcs = api.listNamespacedPersistentVolumeClaim(namespace, "true", null, null, null, null, null, null, null);
-            var pods = api.listNamespacedPod(namespace, "true", null, null, null, null, null, null, null);
-            var validPVCNames = pods.getItems()
-                    .stream()
+            var pvcs = listClaims(namespace);
+            var pods = listPods(namespace);
+            var validPVCNames = pods.stream()
                     .filter(pod -> pod.getSpec().getVolumes().size() > 0)
                     .map(it -> it.getSpec().getVolumes())
                     .flatMap(Collection::stream)
                     .map(V1Volume::getName)
                     .collect(Collectors.toList());
 
-            pvcs.getItems().stream()
+            var danglingClaims = pvcs.stream()
                     .filter(it -> !validPVCNames.contains(it.getMetadata().getName()))
                     .filter(it -> claims.stream().noneMatch(claim -> claim.getMetadata().getName().equals(it.getMetadata().getName())))
-                    .forEach(this::applyDeleteClaim);
+                    .collect(Collectors.toList());
+
+            AsyncCall.await(deleteClaimsAsync(danglingClaims));
 
         } catch (ApiException e) {
             log.error("Could not perform PVC cleanup: ", e);
         }
     }
 
+    private List<V1PersistentVolume> listPersistentVolumes() throws ApiException {
+        if (snapshot != null) {
+            return snapshot.getPersistentVolumes();
+        }
+
+        return api.listPersistentVolume(null, null, null, null, null, null, null, null).getItems();
+    }
+
+    private List<ExtensionsV1beta1Ingress> listIngresses() throws ApiException {
+        if (snapshot != null) {
+            return snapshot.getIngresses();
+        }
+
+        return extensionsV1beta1Api.listIngressForAllNamespaces(null, null, null, null, null, null, null, null).getItems();
+    }
+
+    private List<V1Pod> listPods(String namespace) throws ApiException {
+        if (snapshot != null) {
+            return snapshot.getPods();
+        }
+
+        return api.listNamespacedPod(namespace, "true", null, null, null, null, null, null, null).getItems();
+    }
+
+    private List<V1PersistentVolumeClaim> listClaims(String namespace) throws ApiException {
+        if (snapshot != null) {
+            return snapshot.getClaims();
+        }
+
+        return api.listNamespacedPersistentVolumeClaim(namespace, "true", null, null, null, null, null, null, null).getItems();
+    }
+
     private void createIngress(ExtensionsV1beta1Ingress ingress) {
-        ExtensionsV1beta1Api extensionsV1beta1Api = getExtensionsV1beta1Api();
         try {
             extensionsV1beta1Api.createNamespacedIngress(ingress.getMetadata().getNamespace(), ingress, "true", null, null);
         } catch (ApiException e) {
-            retry(ingress, this::createIngress, e);
+            retry(ingress, this::createIngress, e, () -> readIngress(ingress));
         }
     }
 
-    @NotNull
-    private ExtensionsV1beta1Api getExtensionsV1beta1Api() {
-        var extensionsV1beta1Api = new ExtensionsV1beta1Api();
-        extensionsV1beta1Api.setApiClient(api.getApiClient());
-        return extensionsV1beta1Api;
+    private CompletableFuture<Void> createIngressAsync(ExtensionsV1beta1Ingress ingress) {
+        return createAsync(ingress, () -> extensionsV1beta1Api
+                        .createNamespacedIngressCall(ingress.getMetadata().getNamespace(), ingress, "true", null, null, null, null),
+                this::createIngress, () -> readIngress(ingress));
+    }
+
+    private ExtensionsV1beta1Ingress readIngress(@NotNull ExtensionsV1beta1Ingress ingress) throws ApiException {
+        return extensionsV1beta1Api.readNamespacedIngress(ingress.getMetadata().getName(), ingress.getMetadata().getNamespace(), null, null, null);
     }
 
     private void createService(V1Service service) {
         try {
             api.createNamespacedService(service.getMetadata().getNamespace(), service, "true", null, null);
         } catch (ApiException e) {
-            retry(service, this::createService, e);
+            retry(service, this::createService, e, () -> readService(service));
         }
     }
 
+    private CompletableFuture<Void> createServiceAsync(V1Service service) {
+        return createAsync(service, () -> api
+                        .createNamespacedServiceCall(service.getMetadata().getNamespace(), service, "true", null, null, null, null),
+                this::createService, () -> readService(service));
+    }
+
+    private V1Service readService(@NotNull V1Service service) throws ApiException {
+        return api.readNamespacedService(service.getMetadata().getName(), service.getMetadata().getNamespace(), null, null, null);
+    }
+
     private void createDeployment(ExtensionsV1beta1Deployment deployment) {
-        ExtensionsV1beta1Api extensionsV1beta1Api = getExtensionsV1beta1Api();
         try {
             extensionsV1beta1Api.createNamespacedDeployment(deployment.getMetadata().getNamespace(), deployment, "true", null, null);
         } catch (ApiException e) {
-            retry(deployment, this::createDeployment, e);
+            retry(deployment, this::createDeployment, e, () -> readDeployment(deployment));
         }
     }
 
+    private CompletableFuture<Void> createDeploymentAsync(ExtensionsV1beta1Deployment deployment) {
+        return createAsync(deployment, () -> extensionsV1beta1Api
+                        .createNamespacedDeploymentCall(deployment.getMetadata().getNamespace(), deployment, "true", null, null, null, null),
+                this::createDeployment, () -> readDeployment(deployment));
+    }
+
+    private ExtensionsV1beta1Deployment readDeployment(@NotNull ExtensionsV1beta1Deployment deployment) throws ApiException {
+        return extensionsV1beta1Api
+                .readNamespacedDeployment(deployment.getMetadata().getName(), deployment.getMetadata().getNamespace(), null, null, null);
+    }
+
     private void createNamespace(V1Namespace nameSpace) {
         try {
             api.createNamespace(nameSpace, "true", null, null);
         } catch (ApiException e) {
-            retry(nameSpace, this::createNamespace, e);
+            retry(nameSpace, this::createNamespace, e, () -> api.readNamespace(nameSpace.getMetadata().getName(), null, null, null));
         }
 
 
@@ -576,8 +972,7 @@ public class K8sClient {
 
     @NotNull
     private String getPVCName(Volume volume, @NotNull AutoCD autoCD) {
-        var str = getNamespaceString() + "-" + getName() + "-" + autoCD.getIdentifierRegistryImagePath() + "-" + autoCD.getVolumes().indexOf(volume) + "-claim";
-        return hash(str).substring(0, 20);
+        return names(autoCD).getClaimName(autoCD.getVolumes().indexOf(volume));
     }
 
     @NotNull
@@ -585,7 +980,7 @@ public class K8sClient {
         return getPVCName(volume, autoCD);
     }
 
-    private List<V1PersistentVolumeClaim> getPersistentVolumeClaims(@NotNull AutoCD autoCD) {
+    List<V1PersistentVolumeClaim> getPersistentVolumeClaims(@NotNull AutoCD autoCD) {
         return autoCD.getVolumes().stream().map(volume -> {
             var pvc = new V1PersistentVolumeClaim();
             pvc.setKind("PersistentVolumeClaim");
@@ -595,39 +990,69 @@ public class K8sClient {
             V1PersistentVolumeClaimSpec spec = getV1PersistentVolumeClaimSpec(volume);
 
             pvc.setSpec(spec);
+            ManifestHash.stamp(pvc, meta, api.getApiClient().getJSON());
 
             return pvc;
         }).collect(Collectors.toList());
     }
 
-    private List<ExtensionsV1beta1Ingress> getIngress(@NotNull AutoCD autoCD) {
-        ExtensionsV1beta1Api extensionsV1beta1Api = getExtensionsV1beta1Api();
-        try {
-            var ingresses = extensionsV1beta1Api.listIngressForAllNamespaces(null, null, null, null, null, null, null, null);
-            var ingressWithHostAlreadyPresent = ingresses.getItems()
-                    .stream()
-                    .filter(it -> !it.getMetadata().getNamespace().equals(getNamespaceString()))
-                    .anyMatch(it ->
-                            it.getSpec().getRules().stream()
-                                    .filter(rule -> rule != null && rule.getHost() != null)
-                                    .anyMatch(rule -> autoCD.getSubdomains().contains(rule.getHost())));
-
-            if (ingressWithHostAlreadyPresent) {
-                throw new IllegalStateException("There is already an ingress with host: " + autoCD.getSubdomains() + " present");
+    List<ExtensionsV1beta1Ingress> getIngress(@NotNull AutoCD autoCD) {
+        checkHostConflicts(autoCD);
+        return renderIngress(autoCD);
+    }
+
+    /**
+     * Makes sure none of the subdomains is already served by an ingress of another namespace.
+     *
+     * @param autoCD configuration
+     */
+    private void checkHostConflicts(@NotNull AutoCD autoCD) {
+        var index = getIngressHostIndex();
+        if (index == null) {
+            return;
+        }
+
+        var ingressWithHostAlreadyPresent = autoCD.getSubdomains().stream()
+                .anyMatch(subdomain -> index.isClaimedByOtherNamespace(subdomain, getNamespaceString()));
+
+        if (ingressWithHostAlreadyPresent) {
+            throw new IllegalStateException("There is already an ingress with host: " + autoCD.getSubdomains() + " present");
+        }
+    }
+
+    /**
+     * Returns the host index of the snapshot. Without a snapshot the index is built once from a list of all ingresses.
+     *
+     * @return the index or null if the ingresses could not be listed
+     */
+    private IngressHostIndex getIngressHostIndex() {
+        if (snapshot != null) {
+            return snapshot.getIngressHostIndex();
+        }
+
+        synchronized (this) {
+            if (ingressHostIndex == null) {
+                try {
+                    ingressHostIndex = IngressHostIndex.of(listIngresses());
+                } catch (ApiException e) {
+                    log.error("Could not get Ingresses for all namespaces", e);
+                }
             }
 
-        } catch (ApiException e) {
-            log.error("Could not get Ingresses for all namespaces", e);
+            return ingressHostIndex;
         }
+    }
 
+    private List<ExtensionsV1beta1Ingress> renderIngress(@NotNull AutoCD autoCD) {
         List<ExtensionsV1beta1Ingress> returnList = new ArrayList<>();
+        var names = names(autoCD);
 
         for (String subdomain : autoCD.getSubdomains()) {
 
             var ingress = new ExtensionsV1beta1Ingress();
             ingress.setKind("Ingress");
             var meta = getNamespacedMeta();
-            meta.setName(Util.hash(subdomain + getNamespaceString() + "-" + getName() + "-ingress" + autoCD.getIdentifierRegistryImagePath()).substring(0, 20));
+            meta.setName(names.getIngressName(subdomain));
             meta.setAnnotations(Map.of("cert-manager.io/cluster-issuer", "letsencrypt-prod",
                     "kubernetes.io/ingress.class", "nginx"));
 
@@ -637,7 +1062,7 @@ public class K8sClient {
                     .withHttp(new ExtensionsV1beta1HTTPIngressRuleValueBuilder()
                             .withPaths(new ExtensionsV1beta1HTTPIngressPathBuilder().withPath("/")
                                     .withBackend(new ExtensionsV1beta1IngressBackendBuilder()
-                                            .withServiceName(getServiceName(autoCD))
+                                            .withServiceName(names.getServiceName())
                                             .withServicePort(new IntOrString(autoCD.getServicePort()))
                                             .build())
                                     .build())
@@ -647,13 +1072,14 @@ public class K8sClient {
                     .withRules(rules.build())
                     .withTls(new ExtensionsV1beta1IngressTLSBuilder()
                             .withHosts(subdomain)
-                            .withSecretName(Util.hash(subdomain).substring(0, 10))
+                            .withSecretName(names.getTlsSecretName(subdomain))
                             .build())
                     .build();
 
 
             ingress.setSpec(spec);
             ingress.setMetadata(meta);
+            ManifestHash.stamp(ingress, meta, api.getApiClient().getJSON());
 
             returnList.add(ingress);
         }
@@ -664,38 +1090,26 @@ public class K8sClient {
 
 
     private String getCleanServiceNameLabel(AutoCD autoCD) {
-        var unclean = getServiceNameLabel(autoCD);
-        var clean = unclean.replaceAll("/", "-").replaceAll(":", "");
-        if (clean.startsWith("-")) {
-            clean = clean.substring(1);
-        }
-
-        return clean;
-    }
-
-    private String getServiceNameLabel(AutoCD autoCD) {
-        if (autoCD.getServiceName() != null) {
-            return autoCD.getServiceName();
-        }
-
-        if (autoCD.getRegistryImagePath() != null) {
-            return autoCD.getRegistryImagePath().replaceAll("registry\\.worldiety\\.net", "");
-        }
-
-        return System.getenv(Environment.CI_PROJECT_NAME.toString());
+        return names(autoCD).getServiceNameLabel();
     }
 
     @NotNull
     private String getServiceName(@NotNull AutoCD autoCD) {
-        if (autoCD.getServiceName() != null) {
-            return autoCD.getServiceName();
-        }
+        return names(autoCD).getServiceName();
+    }
 
-        return "service-" + Util.hash(getNamespaceString() + "-" + getName() + "-service").substring(0, 20);
+    /**
+     * The names are derived once per configuration and only again if one of the fields they depend on changed.
+     *
+     * @param autoCD configuration
+     * @return the names of the objects of the configuration
+     */
+    private ResourceNames names(@NotNull AutoCD autoCD) {
+        return resourceNames.compute(autoCD, (it, names) -> names != null && names.isFor(it) ? names : ResourceNames.of(context, it));
     }
 
     @NotNull
-    private V1Service getService(@NotNull AutoCD autoCD) {
+    V1Service getService(@NotNull AutoCD autoCD) {
         var service = new V1Service();
         service.setKind("Service");
         var meta = getNamespacedMeta();
@@ -710,15 +1124,15 @@ public class K8sClient {
 
         service.setSpec(spec);
         service.setMetadata(meta);
+        ManifestHash.stamp(service, meta, api.getApiClient().getJSON());
 
         return service;
     }
 
     @NotNull
-    private ExtensionsV1beta1Deployment getDeployment(@NotNull AutoCD autoCD) {
+    ExtensionsV1beta1Deployment getDeployment(@NotNull AutoCD autoCD) {
         var meta = getNamespacedMeta();
-        var projName = System.getenv(Environment.CI_PROJECT_NAME.toString());
-        meta.setName(Util.hash(getNamespaceString() + autoCD.getIdentifierRegistryImagePath() + projName));
+        meta.setName(names(autoCD).getDeploymentName());
         var labels = Map.of("k8s-app", getK8sApp(autoCD));
         meta.setLabels(labels);
 
@@ -737,6 +1151,9 @@ public class K8sClient {
                 "k8s-app", getK8sApp(autoCD),
                 "name", getName(),
                 "serviceName", getCleanServiceNameLabel(autoCD)));
+        if (autoCD.getImageId() != null) {
+            templateMeta.setAnnotations(Map.of(IMAGE_ID_ANNOTATION, autoCD.getImageId()));
+        }
         template.setMetadata(templateMeta);
 
         var podSpec = new V1PodSpec();
@@ -791,6 +1208,7 @@ public class K8sClient {
         dep.setSpec(spec);
         dep.setKind("Deployment");
         dep.setApiVersion(getApiVersionExtensionV1Beta1());
+        ManifestHash.stamp(dep, meta, api.getApiClient().getJSON());
         return dep;
     }
 
@@ -799,7 +1217,7 @@ public class K8sClient {
 
         List<V1EnvVar> variables = new ArrayList<>();
         if (autoCD.getEnvironmentVariables() != null) {
-            var type = autoCD.getEnvironmentVariables().get(rawBuildType);
+            var type = autoCD.getEnvironmentVariables().get(context.getBuildType());
             if (type != null) {
                 variables = type.entrySet()
                         .stream()
@@ -814,12 +1232,13 @@ public class K8sClient {
                 .withPorts(port)
                 .withEnv(variables)
                 .withArgs(autoCD.getArgs())
-                .withImagePullPolicy("Always");
+                //A pinned image never changes, nodes that have it start the pod without asking the registry
+                .withImagePullPolicy(autoCD.isRegistryImagePinned() ? "IfNotPresent" : "Always");
     }
 
     @NotNull
     private String getK8sApp(@NotNull AutoCD autoCD) {
-        return Util.hash(getNamespaceString() + "-" + getName() + "-" + Util.hash(autoCD.getIdentifierRegistryImagePath())).substring(0, 20) + hyphenedBuildType;
+        return names(autoCD).getK8sApp();
     }
 
     /**
@@ -862,13 +1281,8 @@ public class K8sClient {
         return "v1";
     }
 
-    @NotNull
     private String getName() {
-        if (isLocal()) {
-            return "local-default-name";
-        }
-
-        return System.getenv(Environment.CI_PROJECT_NAME.toString()) + hyphenedBuildType;
+        return context.getName();
     }
 
     @NotNull
@@ -884,16 +1298,8 @@ public class K8sClient {
         return metadata;
     }
 
-    @NotNull
-    private String getNamespaceString() {
-        var nameSpaceName = "local-default";
-
-        if (!isLocal()) {
-            nameSpaceName = System.getenv(Environment.CI_PROJECT_NAMESPACE.toString());
-            nameSpaceName = nameSpaceName.replaceAll("/", "-");
-        }
-
-        return nameSpaceName + hyphenedBuildType;
+    public String getNamespaceString() {
+        return context.getNamespace();
     }
 
     @NotNull
@@ -909,37 +1315,45 @@ public class K8sClient {
     // this code is duplicated because of our checkstyle configuration...
     @SuppressWarnings("DuplicatedCode")
     public void removeDeploymentFromK8s(AutoCD autoCD) {
-        var ingress = getIngress(autoCD);
-        ingress.forEach(this::deleteIngress);
+        //Only the ingresses rendered from the configuration, the namespace is shared with other projects of the group
+        var deletions = renderIngress(autoCD).stream()
+                .map(this::deleteIngressAsync)
+                .collect(Collectors.toList());
         var service = getService(autoCD);
-        deleteService(service);
+        deletions.add(deleteServiceAsync(service));
         var deployment = getDeployment(autoCD);
-        deleteDeployment(deployment);
+        deletions.add(deleteDeploymentAsync(deployment));
         var claims = getPersistentVolumeClaims(autoCD);
-        deleteClaims(claims);
+        deletions.addAll(deleteClaimsAsync(claims));
+        AsyncCall.await(deletions);
     }
 
     /**
      * This method will retry a given function if the resource is still in the "Terminating" phase. We need to catch this exception
      * because the parsing of JSON responses is buggy: https://github.com/kubernetes-client/java/issues/86
+     * Instead of sleeping for a fixed time the object is polled until it is gone.
      *
      * @param obj      The object that will be passed to the function
-     * @param function the function that will be applied after sleeping
+     * @param function the function that will be applied once the old object is gone
      * @param e        the caught exception
+     * @param read     reads the terminating object, has to fail with 404 once it is gone
      * @param <T>      Any Kubernetes Object
      */
-    private <T> void retry(T obj, @NotNull Consumer<T> function, @NotNull ApiException e) {
+    private <T> void retry(T obj, @NotNull Consumer<T> function, @NotNull ApiException e, ApiCall<?> read) {
         if (e.getMessage().equals("Conflict")) {
             var resp = new Gson().fromJson(e.getResponseBody(), KubeStatusResponse.class);
             if (resp.getMessage().startsWith("object is being deleted")) {
-                try {
-                    log.info("Object is still being deleted, retrying...");
-                    Thread.sleep(4000);
-                    function.accept(obj);
-                    return;
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
+                var details = resp.getDetails();
+                var kind = details != null && details.getKind() != null ? details.getKind() : obj.getClass().getSimpleName();
+                var name = details != null ? details.getName() : null;
+
+                log.info("Object is still being deleted, waiting...");
+                if (!deletionAwaiter.await(kind, name, read)) {
+                    throw new IllegalStateException("Timed out waiting for the deletion of " + kind + " " + name);
                 }
+
+                function.accept(obj);
+                return;
             }
 
             if (resp.getMessage().contains("already exists")) {
@@ -950,5 +1364,29 @@ public class K8sClient {
         log.error("Unknown error", e);
         log.info(e.getResponseBody());
     }
+
+    /**
+     * Lets the lookups of persistent volumes, ingresses, pods and claims use the given snapshot instead of listing
+     * them on every call. The snapshot has to watch the namespace of this client.
+     *
+     * @param snapshot the started snapshot
+     */
+    public void useSnapshot(ClusterSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Uses the given index for the host conflict checks instead of listing the ingresses of the cluster, if no
+     * snapshot is used.
+     *
+     * @param index the host index
+     */
+    synchronized void useIngressHostIndex(IngressHostIndex index) {
+        this.ingressHostIndex = index;
+    }
+
+    public DeletionAwaiter getDeletionAwaiter() {
+        return deletionAwaiter;
+    }
 }
 
@@ -0,0 +1,70 @@
+package de.worldiety.autocd.k8s;
+
+import static de.worldiety.autocd.util.Util.isLocal;
+
+import de.worldiety.autocd.util.Environment;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The project specific values every Kubernetes object name is derived from. They are read from the environment once,
+ * so the K8sClient does not need to touch global state while deploying.
+ */
+public final class K8sContext {
+    private final String namespace;
+    private final String name;
+    private final String buildType;
+    private final String projectName;
+
+    /**
+     * @param namespace   the namespace all objects are deployed to
+     * @param name        the name of the project, including the build type
+     * @param buildType   the raw build type, e.g. dev
+     * @param projectName the project name as given by the CI, may be null when running locally
+     */
+    @Contract(pure = true)
+    public K8sContext(String namespace, String name, String buildType, String projectName) {
+        this.namespace = namespace;
+        this.name = name;
+        this.buildType = buildType;
+        this.projectName = projectName;
+    }
+
+    /**
+     * @param buildType the raw build type, e.g. dev
+     * @return the context of the project that is currently built by the CI
+     */
+    @NotNull
+    public static K8sContext fromEnvironment(String buildType) {
+        var projectName = System.getenv(Environment.CI_PROJECT_NAME.toString());
+        var hyphenedBuildType = "-" + buildType;
+
+        if (isLocal()) {
+            return new K8sContext("local-default" + hyphenedBuildType, "local-default-name", buildType, projectName);
+        }
+
+        var namespace = System.getenv(Environment.CI_PROJECT_NAMESPACE.toString()).replaceAll("/", "-");
+        return new K8sContext(namespace + hyphenedBuildType, projectName + hyphenedBuildType, buildType, projectName);
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getBuildType() {
+        return buildType;
+    }
+
+    @NotNull
+    public String getHyphenedBuildType() {
+        return "-" + buildType;
+    }
+
+    public String getProjectName() {
+        return projectName;
+    }
+}
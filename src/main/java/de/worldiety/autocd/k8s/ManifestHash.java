@@ -0,0 +1,67 @@
+package de.worldiety.autocd.k8s;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import de.worldiety.autocd.util.Util;
+import io.kubernetes.client.JSON;
+import io.kubernetes.client.models.V1ObjectMeta;
+import java.util.HashMap;
+import java.util.TreeMap;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Computes a stable hash of a rendered manifest. The hash is stored as annotation on the object so unchanged objects
+ * can be recognized on the next deployment without comparing them field by field.
+ */
+class ManifestHash {
+    static final String ANNOTATION = "autocd.worldiety.de/manifest-hash";
+
+    private ManifestHash() {
+    }
+
+    /**
+     * Hashes the manifest and stores the hash as annotation in the given metadata. The keys are sorted before
+     * hashing, maps like the labels are built with Map.of whose iteration order differs between runs.
+     *
+     * @param manifest the object to hash
+     * @param meta     the metadata of the object
+     * @param json     the serializer of the api client
+     */
+    static void stamp(Object manifest, @NotNull V1ObjectMeta meta, @NotNull JSON json) {
+        var annotations = meta.getAnnotations() == null ? new HashMap<String, String>() : new HashMap<>(meta.getAnnotations());
+        annotations.remove(ANNOTATION);
+        meta.setAnnotations(annotations);
+
+        var canonical = canonicalize(new JsonParser().parse(json.serialize(manifest)));
+        annotations.put(ANNOTATION, Util.hash(canonical.toString()));
+    }
+
+    static String of(V1ObjectMeta meta) {
+        if (meta == null || meta.getAnnotations() == null) {
+            return null;
+        }
+
+        return meta.getAnnotations().get(ANNOTATION);
+    }
+
+    @NotNull
+    private static JsonElement canonicalize(@NotNull JsonElement element) {
+        if (element.isJsonObject()) {
+            var sorted = new TreeMap<String, JsonElement>();
+            element.getAsJsonObject().entrySet().forEach(entry -> sorted.put(entry.getKey(), canonicalize(entry.getValue())));
+            var object = new JsonObject();
+            sorted.forEach(object::add);
+            return object;
+        }
+
+        if (element.isJsonArray()) {
+            var array = new JsonArray();
+            element.getAsJsonArray().forEach(it -> array.add(canonicalize(it)));
+            return array;
+        }
+
+        return element;
+    }
+}
@@ -0,0 +1,142 @@
+package de.worldiety.autocd.k8s;
+
+import de.worldiety.autocd.persistence.AutoCD;
+import de.worldiety.autocd.util.Util;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * All names of the Kubernetes objects of one configuration. Most of them are hashes, so they are derived once instead
+ * of on every use while rendering the manifests.
+ * <p>
+ * The names depend on fields that are populated while the deployment is prepared, e.g. the service name of other
+ * images. isFor tells whether the names are still valid for the current state of the configuration.
+ */
+public final class ResourceNames {
+    private static final int NAME_LENGTH = 20;
+    private static final int SECRET_NAME_LENGTH = 10;
+    private final String registryImagePath;
+    private final String configuredServiceName;
+    private final List<String> subdomains;
+    private final int volumeCount;
+    private final String k8sApp;
+    private final String deploymentName;
+    private final String statefulSetName;
+    private final String serviceName;
+    private final String serviceNameLabel;
+    private final List<String> claimNames;
+    private final Map<String, String> ingressNames;
+    private final Map<String, String> tlsSecretNames;
+
+    private ResourceNames(@NotNull K8sContext context, @NotNull AutoCD autoCD) {
+        this.registryImagePath = autoCD.getRegistryImagePath();
+        this.configuredServiceName = autoCD.getServiceName();
+        this.subdomains = autoCD.getSubdomains() == null ? List.of() : List.copyOf(autoCD.getSubdomains());
+        this.volumeCount = autoCD.getVolumes().size();
+
+        var namespace = context.getNamespace();
+        var name = context.getName();
+        var identifier = autoCD.getIdentifierRegistryImagePath();
+        var workloadName = Util.hash(namespace + identifier + context.getProjectName());
+
+        this.k8sApp = Util.hash(namespace + "-" + name + "-" + Util.hash(identifier), NAME_LENGTH) + context.getHyphenedBuildType();
+        this.deploymentName = workloadName;
+        this.statefulSetName = workloadName.substring(0, NAME_LENGTH);
+        this.serviceName = configuredServiceName != null
+                ? configuredServiceName
+                : "service-" + Util.hash(namespace + "-" + name + "-service", NAME_LENGTH);
+        this.serviceNameLabel = cleanServiceNameLabel(configuredServiceName, registryImagePath, context.getProjectName());
+        this.claimNames = IntStream.range(0, volumeCount)
+                .mapToObj(index -> Util.hash(namespace + "-" + name + "-" + identifier + "-" + index + "-claim", NAME_LENGTH))
+                .collect(Collectors.toUnmodifiableList());
+
+        var ingress = new LinkedHashMap<String, String>();
+        var secrets = new LinkedHashMap<String, String>();
+        subdomains.forEach(subdomain -> {
+            ingress.put(subdomain, Util.hash(subdomain + namespace + "-" + name + "-ingress" + identifier, NAME_LENGTH));
+            secrets.put(subdomain, Util.hash(subdomain, SECRET_NAME_LENGTH));
+        });
+        this.ingressNames = ingress;
+        this.tlsSecretNames = secrets;
+    }
+
+    @NotNull
+    public static ResourceNames of(@NotNull K8sContext context, @NotNull AutoCD autoCD) {
+        return new ResourceNames(context, autoCD);
+    }
+
+    @NotNull
+    private static String cleanServiceNameLabel(String serviceName, String registryImagePath, String projectName) {
+        String unclean;
+        if (serviceName != null) {
+            unclean = serviceName;
+        } else if (registryImagePath != null) {
+            //Labels can not hold the digest, the label stays the same for every build of the image
+            unclean = registryImagePath.split("@")[0].replaceAll("registry\\.worldiety\\.net", "");
+        } else {
+            unclean = projectName;
+        }
+
+        var clean = unclean.replaceAll("/", "-").replaceAll(":", "");
+        if (clean.startsWith("-")) {
+            clean = clean.substring(1);
+        }
+
+        return clean;
+    }
+
+    /**
+     * @param autoCD the configuration
+     * @return true if the fields the names are derived from have not changed since
+     */
+    public boolean isFor(@NotNull AutoCD autoCD) {
+        return Objects.equals(registryImagePath, autoCD.getRegistryImagePath()) &&
+                Objects.equals(configuredServiceName, autoCD.getServiceName()) &&
+                Objects.equals(subdomains, autoCD.getSubdomains() == null ? List.of() : autoCD.getSubdomains()) &&
+                volumeCount == autoCD.getVolumes().size();
+    }
+
+    public String getK8sApp() {
+        return k8sApp;
+    }
+
+    public String getDeploymentName() {
+        return deploymentName;
+    }
+
+    public String getStatefulSetName() {
+        return statefulSetName;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * @return the service name in a form that is a valid label value
+     */
+    public String getServiceNameLabel() {
+        return serviceNameLabel;
+    }
+
+    /**
+     * @param volumeIndex the index of the volume in the configuration
+     * @return the name of the claim and the volume
+     */
+    public String getClaimName(int volumeIndex) {
+        return claimNames.get(volumeIndex);
+    }
+
+    public String getIngressName(String subdomain) {
+        return ingressNames.get(subdomain);
+    }
+
+    public String getTlsSecretName(String subdomain) {
+        return tlsSecretNames.get(subdomain);
+    }
+}
@@ -21,6 +21,8 @@ public class AutoCD {
     private List<String> args = new ArrayList<>();
     private String serviceName = null;
     private List<String> subdomains = new ArrayList<>();
+    //Set when the image has been built by autoCD, not part of the configuration file
+    private transient String imageId;
 
 
     public AutoCD() {
@@ -140,8 +142,18 @@ public class AutoCD {
         this.registryImagePath = registryImagePath;
     }
 
+    /**
+     * @return the image without tag or digest, the same for every build of the image
+     */
     public String getIdentifierRegistryImagePath() {
-        return registryImagePath.split(":")[0];
+        return registryImagePath.split("@")[0].split(":")[0];
+    }
+
+    /**
+     * @return true if the image is referenced by its digest, so it can not change without the path changing
+     */
+    public boolean isRegistryImagePinned() {
+        return registryImagePath != null && registryImagePath.contains("@sha256:");
     }
 
     public int getContainerPort() {
@@ -167,4 +179,12 @@ public class AutoCD {
     public void setServiceName(String serviceName) {
         this.serviceName = serviceName;
     }
+
+    public String getImageId() {
+        return imageId;
+    }
+
+    public void setImageId(String imageId) {
+        this.imageId = imageId;
+    }
 }
@@ -11,5 +11,20 @@ public enum Environment {
     CI_REGISTRY_PASSWORD,
     //Set for the wdy namespace
     K8S_REGISTRY_USER_TOKEN,
-    K8S_REGISTRY_USER_NAME
+    K8S_REGISTRY_USER_NAME,
+    //Optional tuning of AutoCD itself
+    AUTOCD_DEPLOY_PARALLELISM,
+    AUTOCD_DEPLOY_MODE,
+    AUTOCD_DELETION_TIMEOUT,
+    AUTOCD_SCAN_PARALLELISM,
+    AUTOCD_GIT_INDEX,
+    AUTOCD_BUILD_CACHE,
+    AUTOCD_CACHE_DIR,
+    AUTOCD_CONTEXT_COMPRESSION,
+    AUTOCD_CACHE_FROM,
+    AUTOCD_BUILD_PARALLELISM,
+    AUTOCD_BUILDKIT,
+    AUTOCD_METRICS_FILE,
+    AUTOCD_PREPULL,
+    AUTOCD_PREPULL_TIMEOUT
 }
@@ -1,12 +1,17 @@
 package de.worldiety.autocd.util;
 
+import java.util.ArrayList;
+import java.util.List;
 import org.jetbrains.annotations.Contract;
 
+/**
+ * The types of projects autoCD can build. If a project contains files of several types, the one declared first wins.
+ */
 public enum FileType {
     JAVA("java", "openjdk-12-builder", "openjdk-12-prod", "RUN ./gradlew build\n"),
     GO("go", "go-1.13-builder", "go-1.13-prod", "RUN go build -o app . \n"),
     VUE("vue", "vue-builder", "vue-prod", "RUN npm run build\n"),
-    NUXT("vue", "nuxt-builder", "nuxt-prod", "RUN npm i && npm run build"),
+    NUXT("vue", "nuxt-builder", "nuxt-prod", "RUN npm run build\n"),
     EISEN("eisen", "vue-builder", "vue-prod", "RUN npm run build\n"),
     OTHER("other");
 
@@ -40,6 +45,100 @@ public enum FileType {
         this.defaultBuild = defaultBuild;
     }
 
+    /**
+     * The builder stages install dependencies and build the project themselves, so local dependencies, build output
+     * and IDE files are not sent to the docker daemon. A .dockerignore of the project is applied afterwards and can
+     * include them again.
+     *
+     * @return patterns in .dockerignore syntax excluded from the build context
+     */
+    @Contract(pure = true)
+    public List<String> getDefaultDockerignore() {
+        var common = List.of(".git", ".autocd-cache", ".idea", "**/*.iml", "**/.DS_Store");
+        switch (this) {
+            case JAVA:
+                return concat(common, List.of(".gradle", "build", "out", "target"));
+            case VUE:
+            case EISEN:
+                return concat(common, List.of("node_modules", "dist"));
+            case NUXT:
+                return concat(common, List.of("node_modules", ".nuxt"));
+            default:
+                return common;
+        }
+    }
+
+    /**
+     * The builder stages copy these files and resolve the dependencies before the sources are copied, so the
+     * dependency layer is reused until one of them changes. Directories are copied with their content.
+     *
+     * @return the files and directories in the project root describing the dependencies, relative to it
+     */
+    @Contract(pure = true)
+    public List<String> getManifestFiles() {
+        switch (this) {
+            case JAVA:
+                return List.of("gradlew", "gradle", "build.gradle", "build.gradle.kts", "settings.gradle",
+                        "settings.gradle.kts", "gradle.properties");
+            case GO:
+                return List.of("go.mod", "go.sum");
+            case VUE:
+            case NUXT:
+            case EISEN:
+                return List.of("package.json", "package-lock.json", "npm-shrinkwrap.json");
+            default:
+                return List.of();
+        }
+    }
+
+    /**
+     * @return the step resolving the dependencies from the manifest files, null if there is none
+     */
+    @Contract(pure = true)
+    public String getDependencyStep() {
+        switch (this) {
+            case JAVA:
+                //Only a cache, the build resolves whatever could not be resolved without the sources
+                return "RUN ./gradlew dependencies --no-daemon || true\n";
+            case GO:
+                return "RUN go mod download\n";
+            case VUE:
+            case NUXT:
+            case EISEN:
+                return "RUN npm install\n";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * BuildKit keeps these directories between builds on the same daemon when they are mounted as cache, so changed
+     * dependencies only download what is new. node_modules is not mounted, the build output needs it in the layer.
+     *
+     * @return the directories the dependencies of the project type are downloaded to
+     */
+    @Contract(pure = true)
+    public List<String> getCacheMounts() {
+        switch (this) {
+            case JAVA:
+                return List.of("/root/.gradle");
+            case GO:
+                return List.of("/go/pkg/mod", "/root/.cache/go-build");
+            case VUE:
+            case NUXT:
+            case EISEN:
+                return List.of("/root/.npm");
+            default:
+                return List.of();
+        }
+    }
+
+    private static List<String> concat(List<String> first, List<String> second) {
+        var result = new ArrayList<>(first);
+        result.addAll(second);
+        return result;
+    }
+
     public String getDefaultBuild() {
         return defaultBuild;
     }
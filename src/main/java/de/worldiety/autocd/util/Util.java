@@ -1,15 +1,21 @@
 package de.worldiety.autocd.util;
 
+import de.worldiety.autocd.docker.BuiltImage;
 import de.worldiety.autocd.docker.Docker;
 import de.worldiety.autocd.persistence.AutoCD;
 import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Objects;
+import java.util.Collection;
+import java.util.concurrent.ThreadFactory;
 
 public class Util {
     public static final String CLOUDIETY_DOMAIN = ".cloudiety.de";
+    private static final int SHA_256_HEX_LENGTH = 64;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    //MessageDigest.getInstance is expensive and the instances are not thread-safe
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(Util::newSha256);
 
     public static String buildSubdomain(String buildType, String hash) {
         if (isLocal()) {
@@ -33,35 +39,112 @@ public class Util {
     }
 
 
-    public static void pushDockerAndSetPath(File dockerfile, AutoCD autoCD, String buildType) {
-        var dockerClient = new Docker();
-        var tag = dockerClient.buildAndPushImageFromFile(dockerfile, buildType);
-        autoCD.setRegistryImagePath(tag);
+    /**
+     * Reads a numeric environment variable, falling back to the default if it is not set or not a number.
+     *
+     * @param env          the variable to read
+     * @param defaultValue the fallback
+     * @return the value
+     */
+    public static int getEnvInt(Environment env, int defaultValue) {
+        var value = System.getenv(env.toString());
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
-    private static String bytesToHex(byte[] hash) {
-        StringBuilder hexString = new StringBuilder();
-        for (byte b : hash) {
-            String hex = Integer.toHexString(0xff & b);
-            if (hex.length() == 1) {
-                hexString.append('0');
-            }
-            hexString.append(hex);
+    /**
+     * Reads a boolean environment variable, falling back to the default if it is not set.
+     *
+     * @param env          the variable to read
+     * @param defaultValue the fallback
+     * @return true if the variable is "true", ignoring case
+     */
+    public static boolean getEnvBoolean(Environment env, boolean defaultValue) {
+        var value = System.getenv(env.toString());
+        if (value == null || value.isBlank()) {
+            return defaultValue;
         }
-        return hexString.toString();
+        return Boolean.parseBoolean(value.trim());
     }
 
+    /**
+     * @param name the name of the threads
+     * @return a thread factory for daemon threads, which do not keep the JVM alive once the deployment is done
+     */
+    public static ThreadFactory daemonThreadFactory(String name) {
+        return runnable -> {
+            var thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
 
-    public static String hash(String toHash) {
-        MessageDigest digest = null;
+    /**
+     * @param docker         the client to build with, shared by concurrent builds
+     * @param dockerfile     the Dockerfile to build
+     * @param autoCD         the configuration the image is set for
+     * @param buildType      the build type, used as tag
+     * @param additionalTags further tags the image is pushed with
+     * @param fileType       the type of the project
+     * @return the built image
+     */
+    public static BuiltImage pushDockerAndSetPath(Docker docker, File dockerfile, AutoCD autoCD, String buildType,
+                                                  Collection<String> additionalTags, FileType fileType) {
+        var image = docker.buildAndPushImageFromFile(dockerfile, buildType, additionalTags, fileType);
+        autoCD.setRegistryImagePath(image.getReference());
+        autoCD.setImageId(image.getImageId());
+        return image;
+    }
+
+    /**
+     * @return a new SHA-256 instance for digests that are built from several updates
+     */
+    public static MessageDigest newSha256() {
         try {
-            digest = MessageDigest.getInstance("SHA-256");
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+            throw new IllegalStateException("SHA-256 is not available", e);
         }
-        byte[] encodedhash = Objects.requireNonNull(digest).digest(
-                toHash.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param bytes the bytes to encode
+     * @return the lower case hex encoding of the bytes
+     */
+    public static String bytesToHex(byte[] bytes) {
+        return bytesToHex(bytes, bytes.length * 2);
+    }
+
+    private static String bytesToHex(byte[] hash, int length) {
+        var hex = new char[length];
+        for (int i = 0; i < length; i++) {
+            var b = hash[i / 2];
+            hex[i] = HEX_DIGITS[(i % 2 == 0 ? b >> 4 : b) & 0xf];
+        }
+        return new String(hex);
+    }
+
+    public static String hash(String toHash) {
+        return hash(toHash, SHA_256_HEX_LENGTH);
+    }
 
-        return Util.bytesToHex(encodedhash);
+    /**
+     * Same as hash(toHash).substring(0, length), without encoding the part that is cut off.
+     *
+     * @param toHash the string to hash
+     * @param length the number of hex digits to return
+     * @return the first length hex digits of the SHA-256 hash
+     */
+    public static String hash(String toHash, int length) {
+        //digest resets the instance, so it can be reused by the next call on this thread
+        var encodedhash = SHA_256.get().digest(toHash.getBytes(StandardCharsets.UTF_8));
+        return Util.bytesToHex(encodedhash, Math.min(length, SHA_256_HEX_LENGTH));
     }
 }